@@ -12,6 +12,17 @@ public class Main {
     private static boolean verbose = false;
     private static UDPSocketManager socketManager;
     private static String currentUser;
+    private static final KeyedDispatcher dispatcher = new KeyedDispatcher(1024);
+    // With several shards every socket gets its own copy of a broadcast; copies seen this recently
+    // are dropped. Guarded by itself.
+    private static final long BROADCAST_REPEAT_NANOS = 2_000_000_000L;
+    private static final int MAX_RECENT_BROADCASTS = 1024;
+    private static final Map<String, Long> recentBroadcasts = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_RECENT_BROADCASTS;
+        }
+    };
 
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
@@ -25,7 +36,7 @@ public class Main {
             }
 
             System.out.println("Starting LSNP on port " + PORT);
-            socketManager = new UDPSocketManager(PORT);
+            socketManager = new UDPSocketManager(PORT, Integer.getInteger("lsnp.shards", 1));
             InetAddress localIP = InetAddress.getLocalHost();
             System.out.println("Local IP: " + localIP.getHostAddress());
 
@@ -64,7 +75,7 @@ public class Main {
             }).start();
 
             System.out.println("Starting listener thread...");
-            new Thread(() -> startListener(socketManager, postHandler, dmHandler, fileHandler, profileHandler, followHandler, groupHandler, likeHandler, revokeHandler, ticTacToeHandler)).start();
+            startListener(socketManager, postHandler, dmHandler, fileHandler, profileHandler, followHandler, groupHandler, likeHandler, revokeHandler, ticTacToeHandler);
 
             runMenu(scanner, socketManager, postHandler, dmHandler, fileHandler, profileHandler, followHandler, groupHandler, groupManager, groupStore, likeHandler, revokeHandler, ticTacToeHandler);
 
@@ -221,10 +232,13 @@ public class Main {
 
                     String serialized = MessageParser.serialize(createMsg);
                     for (InetSocketAddress addr : memberAddresses.values()) {
-                        socketManager.sendMessage(serialized, addr.getAddress(), addr.getPort());
+                        socketManager.sendAsync(serialized, addr.getAddress(), addr.getPort()).exceptionally(e -> {
+                            System.err.println("Failed to send GROUP_CREATE to " + addr + ": " + e.getMessage());
+                            return null;
+                        });
                     }
 
-                    VerboseLogger.log("Sent GROUP_CREATE for group " + groupName);
+                    VerboseLogger.log("Sent GROUP_CREATE for group {}", groupName);
                 } catch (Exception e) {
                     System.err.println("Failed to send GROUP_CREATE: " + e.getMessage());
                     e.printStackTrace();
@@ -284,7 +298,7 @@ public class Main {
                     String groupId = ConsoleInput.readLine(scanner, "Enter Group ID to send message to: ").trim();
                     String content = ConsoleInput.readLine(scanner, "Enter message content: ").trim();
                     groupHandler.sendGroupMessage(groupId, content);
-                    VerboseLogger.log("Sent GROUP_MESSAGE to group " + groupId);
+                    VerboseLogger.log("Sent GROUP_MESSAGE to group {}", groupId);
                 } catch (Exception e) {
                     System.err.println("Failed to send group message: " + e.getMessage());
                     e.printStackTrace();
@@ -293,7 +307,7 @@ public class Main {
 
             case "8":
                 try {
-                    String filePath = ConsoleInput.readLine(scanner, "Enter path to file: ").trim();
+                    String filePath = ConsoleInput.readLine(scanner, "Enter path to file or folder: ").trim();
                     String recipientId = ConsoleInput.readLine(scanner, "Enter recipient ID: ").trim();
                     String ip = ConsoleInput.readLine(scanner, "Enter recipient IP address: ").trim();
                     InetAddress recipientAddress = InetAddress.getByName(ip);
@@ -360,6 +374,21 @@ public class Main {
                 }
                 break;
 
+            case "14":
+                System.out.println("\n=== SOCKET STATS ===");
+                socketManager.getShardStats().forEach(System.out::println);
+                System.out.println("Active dispatch lanes: " + dispatcher.activeKeys());
+                break;
+
+            case "15":
+                System.out.println("\n=== FILE TRANSFERS ===");
+                List<TransferProgress> progress = fileHandler.transferProgress();
+                if (progress.isEmpty()) {
+                    System.out.println("No file transfers running.");
+                }
+                progress.forEach(System.out::println);
+                break;
+
             case "0":
                 System.out.println("Goodbye.");
                 System.exit(0);
@@ -389,6 +418,8 @@ public class Main {
         System.out.println("11. Follow / Unfollow User");
         System.out.println("12. Toggle Verbose Mode");
         System.out.println("13. Revoke Token");
+        System.out.println("14. Socket Stats");
+        System.out.println("15. File Transfers");
         System.out.println("0. Exit");
         System.out.print("Select option: ");
     }
@@ -400,49 +431,163 @@ public class Main {
                                       RevokeHandler revokeHandler,
                                       TicTacToeHandler ticTacToeHandler) {
         try {
-            System.out.println("Listener started, waiting for messages...");
-            while (true) {
-                String msg = socketManager.receiveMessage();
-                if (msg == null) continue;
+            socketManager.startReceiving(datagram -> acceptDatagram(datagram, postHandler, dmHandler, fileHandler,
+                    profileHandler, followHandler, groupHandler, likeHandler, revokeHandler, ticTacToeHandler));
+            System.out.println("Listener started on " + socketManager.getShardCount()
+                    + " socket(s), waiting for messages...");
+        } catch (Exception e) {
+            System.err.println("Listener error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 
-                InetAddress senderIP = socketManager.getLastSenderAddress();
-                Map<String, String> parsed = MessageParser.parse(msg);
+    // Runs on a shard's receive thread: filter cheaply, then hand the message to the dispatcher.
+    private static void acceptDatagram(ReceivedDatagram datagram, PostHandler postHandler,
+                                       DMHandler dmHandler, FileHandler fileHandler,
+                                       ProfileHandler profileHandler, FollowHandler followHandler,
+                                       GroupHandler groupHandler, LikeHandler likeHandler,
+                                       RevokeHandler revokeHandler,
+                                       TicTacToeHandler ticTacToeHandler) {
+        boolean dispatched = false;
+        try {
+            InetAddress senderIP = datagram.getSenderAddress();
+            int senderPort = datagram.getSenderPort();
+            // Each check indexes only as far as the field it needs, so a message dropped on its
+            // TYPE is not scanned past it. The rest of the message (DATA, CONTENT, ...) is
+            // indexed later, on the handler's thread.
+            LsnpMessage message = MessageParser.parse(datagram.payload());
+            if (!message.has(LsnpField.TYPE)) {
+                VerboseLogger.drop("Missing TYPE from {}", senderIP.getHostAddress());
+                return;
+            }
+            String type = message.peek(LsnpField.TYPE);
 
-                String userId = parsed.getOrDefault("USER_ID", parsed.get("FROM"));
-                String type = parsed.get("TYPE");
+            String lane = getDispatchLane(type);
+            if (lane == null) {
+                VerboseLogger.drop("Unhandled TYPE: {}", type);
+                return;
+            }
 
-                if (!"ACK".equals(type) && !IPLogger.verifyIP(userId, senderIP.getHostAddress())) {
-                    VerboseLogger.drop("IP mismatch for user " + userId + " from " + senderIP.getHostAddress());
-                    continue;
-                }
+            message.indexUntil(LsnpField.USER_ID, LsnpField.FROM);
+            String userId = message.peek(LsnpField.USER_ID) != null ? message.peek(LsnpField.USER_ID) : message.peek(LsnpField.FROM);
+
+            if (isRepeatedBroadcast(type, message, datagram)) {
+                VerboseLogger.drop("Repeated {} from {} on another socket", type, senderIP.getHostAddress());
+                return;
+            }
+
+            if (!"ACK".equals(type) && !IPLogger.verifyIP(userId, senderIP.getHostAddress())) {
+                VerboseLogger.drop("IP mismatch for user {} from {}", userId, senderIP.getHostAddress());
+                return;
+            }
 
-                String expectedScope = getExpectedTokenScope(type);
-                if (expectedScope != null && !TokenValidator.validate(parsed, expectedScope)) {
+            String expectedScope = getExpectedTokenScope(type);
+            if (expectedScope != null) {
+                String token = message.has(LsnpField.TOKEN) ? message.peek(LsnpField.TOKEN) : null;
+                String tokenUser = message.peek(LsnpField.FROM) != null ? message.peek(LsnpField.FROM) : userId;
+                if (!TokenValidator.validate(tokenUser, token, expectedScope)) {
                     VerboseLogger.drop("Invalid or expired token or scope mismatch");
-                    continue;
+                    return;
                 }
+            }
 
-                switch (type) {
-                    case "POST" -> postHandler.handle(parsed, senderIP.getHostAddress());
-                    case "DM" -> dmHandler.handle(parsed);
-                    case "GROUP_CREATE", "GROUP_UPDATE", "GROUP_MESSAGE" -> groupHandler.handle(parsed, senderIP.getHostAddress());
-                    case "FILE_OFFER", "FILE_CHUNK", "FILE_RECEIVED" -> fileHandler.handle(parsed, senderIP.getHostAddress());
-                    case "LIKE" -> likeHandler.handle(parsed, senderIP.getHostAddress());
-                    case "REVOKE" -> revokeHandler.handle(parsed, senderIP.getHostAddress());
-                    case "ACK" -> {
-                        fileHandler.handleAck(parsed);
-                        dmHandler.handleAck(parsed);
-                    }
-                    case "PROFILE" -> profileHandler.handle(parsed, senderIP.getHostAddress());
-                    case "FOLLOW", "UNFOLLOW" -> followHandler.handle(parsed, senderIP.getHostAddress());
-                    case "TICTACTOE_INVITE", "TICTACTOE_MOVE", "TICTACTOE_RESULT" -> ticTacToeHandler.handle(parsed, senderIP.getHostAddress());
-                    default -> VerboseLogger.log("Unhandled TYPE: " + type);
+            if ("POST".equals(type) && !followHandler.isFollowing(userId)) {
+                VerboseLogger.drop("Ignoring post from non-followed user: {}", userId);
+                return;
+            }
+
+            // Handlers may block (console prompts, game moves), so each one runs on the
+            // dispatcher. Messages from one peer in one lane stay in order. Each file gets its own
+            // lane, so an offer waiting at the prompt holds up only that file's chunks.
+            String peer = userId != null ? userId : senderIP.getHostAddress() + ":" + senderPort;
+            String key = peer + "|" + lane;
+            if ("file".equals(lane)) {
+                // Chunk headers put FILEID ahead of DATA, so this stops short of the payload
+                key += "|" + (message.has(LsnpField.FILEID) ? message.peek(LsnpField.FILEID) : null);
+            }
+            dispatched = dispatcher.dispatch(key, () -> {
+                try {
+                    routeMessage(type, message, senderIP.getHostAddress(), senderPort, postHandler, dmHandler,
+                            fileHandler, profileHandler, followHandler, groupHandler, likeHandler,
+                            revokeHandler, ticTacToeHandler);
+                } finally {
+                    datagram.release();
                 }
+            });
+            if (!dispatched) {
+                VerboseLogger.drop("Dispatch queue full for {}", key);
             }
-        } catch (Exception e) {
-            System.err.println("Listener error: " + e.getMessage());
-            e.printStackTrace();
+        } finally {
+            if (!dispatched) {
+                datagram.release();
+            }
+        }
+    }
+
+    private static void routeMessage(String type, LsnpMessage message, String senderIP, int senderPort,
+                                     PostHandler postHandler, DMHandler dmHandler, FileHandler fileHandler,
+                                     ProfileHandler profileHandler, FollowHandler followHandler,
+                                     GroupHandler groupHandler, LikeHandler likeHandler,
+                                     RevokeHandler revokeHandler, TicTacToeHandler ticTacToeHandler) {
+        Map<String, String> parsed = message.asMap();
+        switch (type) {
+            case "POST" -> postHandler.handle(parsed, senderIP);
+            case "DM" -> dmHandler.handle(parsed);
+            case "GROUP_CREATE", "GROUP_UPDATE", "GROUP_MESSAGE" -> groupHandler.handle(parsed, senderIP);
+            case "FILE_OFFER", "FILE_CHUNK", "FILE_RECEIVED", "FILE_ACK", "FILE_RESUME", "FILE_REPAIR", "FILE_REQUEST",
+                    "FILE_HAVE", "FILE_BASIS", "FILE_SIGNATURE", "MTU_PROBE" ->
+                    fileHandler.handle(message, senderIP, senderPort);
+            case "LIKE" -> likeHandler.handle(parsed, senderIP);
+            case "REVOKE" -> revokeHandler.handle(parsed, senderIP);
+            case "ACK" -> {
+                fileHandler.handleAck(parsed);
+                dmHandler.handleAck(parsed);
+            }
+            case "PROFILE" -> profileHandler.handle(parsed, senderIP);
+            case "FOLLOW", "UNFOLLOW" -> followHandler.handle(parsed, senderIP);
+            case "TICTACTOE_INVITE", "TICTACTOE_MOVE", "TICTACTOE_RESULT" -> ticTacToeHandler.handle(parsed, senderIP);
+            default -> VerboseLogger.log("Unhandled TYPE: {}", type);
+        }
+    }
+
+    // ACKs get their own lane so they are never stuck behind a handler waiting on the console.
+    // Returns null for types no handler takes, so they can be dropped before any parsing.
+    private static String getDispatchLane(String type) {
+        return switch (type) {
+            case "FILE_OFFER", "FILE_CHUNK", "FILE_REPAIR", "FILE_REQUEST", "FILE_SIGNATURE", "FILE_RECEIVED" -> "file";
+            case "TICTACTOE_INVITE", "TICTACTOE_MOVE", "TICTACTOE_RESULT" -> "game";
+            case "GROUP_CREATE", "GROUP_UPDATE", "GROUP_MESSAGE" -> "group";
+            case "ACK", "FILE_ACK", "FILE_RESUME", "FILE_HAVE", "FILE_BASIS", "MTU_PROBE", "PROFILE" -> "control";
+            case "POST", "DM", "LIKE", "REVOKE", "FOLLOW", "UNFOLLOW" -> "chat";
+            default -> null;
+        };
+    }
+
+    private static boolean isRepeatedBroadcast(String type, LsnpMessage message, ReceivedDatagram datagram) {
+        if (socketManager.getShardCount() == 1 || !isBroadcastType(type)) {
+            return false;
         }
+        // Copies are byte-identical, so a MESSAGE_ID already indexed or else the payload tells them apart
+        String messageId = message.peek(LsnpField.MESSAGE_ID);
+        String key = datagram.getSenderAddress().getHostAddress() + ":" + datagram.getSenderPort() + "|" + type
+                + "|" + (messageId != null ? messageId : datagram.length() + "/" + datagram.payload().hashCode());
+        long now = datagram.getReceivedAtNanos();
+        synchronized (recentBroadcasts) {
+            Long seen = recentBroadcasts.get(key);
+            if (seen != null && now - seen < BROADCAST_REPEAT_NANOS) {
+                return true;
+            }
+            recentBroadcasts.remove(key);
+            recentBroadcasts.put(key, now);
+            return false;
+        }
+    }
+
+    private static boolean isBroadcastType(String type) {
+        return switch (type) {
+            case "PROFILE", "POST", "LIKE", "REVOKE", "PING" -> true;
+            default -> false;
+        };
     }
 
     private static String getExpectedTokenScope(String type) {
@@ -450,12 +595,13 @@ public class Main {
         return switch (type) {
             case "POST", "LIKE" -> "broadcast";
             case "DM" -> "chat";
-            case "FILE_OFFER", "FILE_CHUNK" -> "file";
+            case "FILE_OFFER", "FILE_CHUNK", "FILE_ACK", "FILE_RESUME", "FILE_REPAIR", "FILE_REQUEST",
+                    "FILE_HAVE", "FILE_BASIS", "FILE_SIGNATURE" -> "file";
             case "TICTACTOE_INVITE", "TICTACTOE_MOVE", "TICTACTOE_RESULT" -> "game";
             case "FOLLOW", "UNFOLLOW" -> "follow";
             case "GROUP_CREATE", "GROUP_UPDATE", "GROUP_MESSAGE" -> "group";
             case "REVOKE" -> "revoke";
-            case "PING", "ACK", "PROFILE" -> null;
+            case "PING", "ACK", "PROFILE", "MTU_PROBE" -> null;
             default -> null;
         };
     }
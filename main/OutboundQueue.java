@@ -0,0 +1,164 @@
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import main.utils.TokenBucket;
+
+/**
+ * Asynchronous outbound path. Each destination gets a bounded lock-free queue and its own
+ * token bucket; a small pool of sender threads drains destinations that have work and tokens.
+ * Order is kept per destination, and nothing submitted here ever blocks the caller. Datagrams
+ * whose rate a congestion window already sets skip the bucket, and destinations left idle are
+ * dropped.
+ */
+public class OutboundQueue {
+    // Sends per drain turn before a destination yields its sender thread to the others
+    private static final int SENDS_PER_TURN = 64;
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long SWEEP_SECONDS = 30;
+
+    public interface Transport {
+        void send(ByteBuffer payload, InetSocketAddress target) throws IOException;
+    }
+
+    private final Transport transport;
+    private final ScheduledExecutorService senders;
+    private final ConcurrentHashMap<InetSocketAddress, Destination> destinations = new ConcurrentHashMap<>();
+    private final int queueCapacity;
+    private final long rateBytesPerSecond;
+    private final long burstBytes;
+
+    private static final class Pending {
+        final ByteBuffer payload;
+        final boolean paced;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Pending(ByteBuffer payload, boolean paced) {
+            this.payload = payload;
+            this.paced = paced;
+        }
+    }
+
+    private final class Destination implements Runnable {
+        final InetSocketAddress target;
+        final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final TokenBucket bucket = new TokenBucket(rateBytesPerSecond, burstBytes);
+        volatile long lastSubmitNanos = System.nanoTime();
+
+        Destination(InetSocketAddress target) {
+            this.target = target;
+        }
+
+        // Only one drain runs per destination at a time (guarded by 'scheduled'), so the
+        // bucket needs no locking.
+        @Override
+        public void run() {
+            for (int sent = 0; sent < SENDS_PER_TURN; ) {
+                Pending next = queue.peek();
+                if (next == null) {
+                    scheduled.set(false);
+                    // Re-check: a submit may have raced with us clearing the flag
+                    if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                long waitNanos = next.paced ? bucket.tryConsume(next.payload.remaining()) : 0;
+                if (waitNanos > 0) {
+                    senders.schedule(this, waitNanos, TimeUnit.NANOSECONDS);
+                    return;
+                }
+
+                queue.poll();
+                size.decrementAndGet();
+                try {
+                    transport.send(next.payload, target);
+                    next.result.complete(null);
+                } catch (IOException | RuntimeException e) {
+                    next.result.completeExceptionally(e);
+                }
+                sent++;
+            }
+            senders.execute(this);
+        }
+    }
+
+    public OutboundQueue(Transport transport, int senderThreads, int queueCapacity, long rateBytesPerSecond,
+            long burstBytes) {
+        this.transport = transport;
+        this.queueCapacity = queueCapacity;
+        this.rateBytesPerSecond = rateBytesPerSecond;
+        this.burstBytes = burstBytes;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.senders = Executors.newScheduledThreadPool(senderThreads, r -> {
+            Thread t = new Thread(r, "lsnp-tx-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        senders.scheduleAtFixedRate(this::evictIdle, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queues a datagram for {@code target}. The future completes once the datagram has been
+     * handed to the socket, or fails if the destination queue is full or the send fails.
+     */
+    public CompletableFuture<Void> submit(ByteBuffer payload, InetSocketAddress target) {
+        return submit(payload, target, true);
+    }
+
+    /**
+     * Same, but with {@code paced} false the datagram is not held to the per-destination rate:
+     * for traffic a congestion window already limits. It still keeps its place in the queue.
+     */
+    public CompletableFuture<Void> submit(ByteBuffer payload, InetSocketAddress target, boolean paced) {
+        // Counted inside compute, so evictIdle cannot drop a destination something is being queued to
+        Destination destination = destinations.compute(target, (k, d) -> {
+            Destination dest = d == null ? new Destination(k) : d;
+            dest.size.incrementAndGet();
+            dest.lastSubmitNanos = System.nanoTime();
+            return dest;
+        });
+        if (destination.size.get() > queueCapacity) {
+            destination.size.decrementAndGet();
+            return CompletableFuture.failedFuture(new IOException("Send queue full for " + target));
+        }
+
+        Pending pending = new Pending(payload, paced);
+        destination.queue.add(pending);
+        if (destination.scheduled.compareAndSet(false, true)) {
+            senders.execute(destination);
+        }
+        return pending.result;
+    }
+
+    // Drops destinations with nothing queued that have not been sent to for a while
+    private void evictIdle() {
+        long now = System.nanoTime();
+        for (InetSocketAddress target : destinations.keySet()) {
+            destinations.computeIfPresent(target, (k, d) -> d.size.get() == 0 && !d.scheduled.get()
+                    && now - d.lastSubmitNanos > IDLE_NANOS ? null : d);
+        }
+    }
+
+    public int queuedFor(InetSocketAddress target) {
+        Destination destination = destinations.get(target);
+        return destination == null ? 0 : destination.size.get();
+    }
+
+    public void shutdown() {
+        senders.shutdown();
+    }
+}
@@ -2,65 +2,371 @@ package main;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import main.utils.BufferPool;
+import main.utils.LogCategory;
+import main.utils.MessageParser;
+import main.utils.ReceivedDatagram;
+import main.utils.VerboseLogger;
+import main.utils.WireFormat;
 
 public class UDPSocketManager {
-    private DatagramSocket socket;
-    private int port;
-    private boolean verbose;
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final int MAX_DRAIN_PER_WAKEUP = 256;
+    private static final int MAX_SEND_ATTEMPTS = 200;
+    private static final int MAX_POOLED_BUFFERS = 128;
+    // Received datagrams waiting to be handled, per shard. Each holds a whole 64 KB buffer until its
+    // handler finishes, so past this many the rest are read into a scratch buffer and dropped.
+    private static final int MAX_QUEUED_DATAGRAMS = Integer.getInteger("lsnp.rxQueued", 256);
+
+    // Outbound pacing, overridable with -Dlsnp.* system properties
+    private static final int SENDER_THREADS = Integer.getInteger("lsnp.senderThreads", 2);
+    private static final int SEND_QUEUE_CAPACITY = Integer.getInteger("lsnp.sendQueue", 4096);
+    // File chunks are paced by their transfer's window instead, see sendWindowed
+    private static final long PEER_RATE_BYTES = Long.getLong("lsnp.peerRate", 2_000_000L);
+    private static final long PEER_BURST_BYTES = Long.getLong("lsnp.peerBurst", 64 * 1024L);
+    // Kernel receive buffer per socket; file chunks can be up to 64 KB each once the path MTU is probed
+    private static final int RECEIVE_BUFFER_BYTES = Integer.getInteger("lsnp.rcvBuf", 4 * 1024 * 1024);
+
+    private final Shard[] shards;
+    private final OutboundQueue outbound;
+    private final int port;
     private InetAddress lastSenderAddress;
     private int lastSenderPort;
+    private volatile boolean closed = false;
+
+    // Datagrams are received straight into pooled direct buffers shared by all shards.
+    private final BufferPool receivePool;
+
+    // Pull-mode state for receiveDatagram(); only touched by the thread calling it.
+    private final Selector pullSelector;
+    private final ArrayDeque<ReceivedDatagram> ready = new ArrayDeque<>();
+
+    /**
+     * One socket of the reuseport group. The kernel hashes each sender's address to a
+     * fixed shard, so datagrams from one peer always arrive on the same shard.
+     */
+    private static class Shard {
+        final int index;
+        final DatagramChannel channel;
+        final AtomicLong datagrams = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong wakeups = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        // Only used by whichever thread drains the shard
+        ByteBuffer scratch;
+
+        Shard(int index, DatagramChannel channel) {
+            this.index = index;
+            this.channel = channel;
+        }
+    }
+
+    public UDPSocketManager(int port) throws IOException {
+        this(port, 1);
+    }
 
-    public UDPSocketManager(int port) throws SocketException {
+    /**
+     * Opens {@code shardCount} sockets on the same port. With more than one shard the
+     * sockets are bound with SO_REUSEPORT and the kernel spreads senders across them;
+     * if the platform lacks SO_REUSEPORT a single socket is used instead.
+     */
+    public UDPSocketManager(int port, int shardCount) throws IOException {
         this.port = port;
-        this.socket = new DatagramSocket(port);
-        this.socket.setSoTimeout(1000);
-        this.verbose = false;
+
+        int count = Math.max(1, shardCount);
+        if (count > 1 && !reusePortSupported()) {
+            System.err.println("SO_REUSEPORT not supported here, using a single socket");
+            count = 1;
+        }
+
+        this.shards = new Shard[count];
+        this.receivePool = new BufferPool(MAX_DATAGRAM_SIZE, MAX_POOLED_BUFFERS * count, true,
+                MAX_QUEUED_DATAGRAMS * count);
+        this.pullSelector = Selector.open();
+        for (int i = 0; i < count; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+            if (count > 1) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            shards[i] = new Shard(i, channel);
+            channel.register(pullSelector, SelectionKey.OP_READ, shards[i]);
+        }
+        this.outbound = new OutboundQueue(this::sendNow, SENDER_THREADS, SEND_QUEUE_CAPACITY, PEER_RATE_BYTES,
+                PEER_BURST_BYTES);
     }
 
+    private static boolean reusePortSupported() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Shows every datagram sent and received; same as enabling the SEND and RECV log categories. */
     public void setVerbose(boolean verbose) {
-        this.verbose = verbose;
+        VerboseLogger.setEnabled(LogCategory.SEND, verbose);
+        VerboseLogger.setEnabled(LogCategory.RECV, verbose);
     }
 
-    public void sendMessage(String message, InetAddress address, int destPort) throws IOException {
-        byte[] buffer = message.getBytes("UTF-8");
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, destPort);
-        socket.send(packet);
-        if (verbose) {
-            System.out.println("[SENT] To " + address.getHostAddress() + ":" + destPort);
+    /**
+     * Blocking: sends through the paced outbound queue and waits until the datagram is on the
+     * socket, so failures surface as exceptions. Only for console commands and the periodic
+     * announcement thread; handlers and other threads that must not block use {@link #sendAsync}.
+     */
+    public void sendBlocking(String message, InetAddress address, int destPort) throws IOException {
+        try {
+            sendAsync(message, address, destPort).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending to " + address.getHostAddress() + ":" + destPort, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(cause);
         }
     }
 
-    public String receiveMessage() throws IOException {
-        byte[] buffer = new byte[65535];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    public CompletableFuture<Void> sendAsync(String message, InetAddress address, int destPort) {
+        return sendAsync(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), address, destPort);
+    }
+
+    /** Queues a datagram without blocking; ownership of {@code payload} passes to the queue. */
+    public CompletableFuture<Void> sendAsync(ByteBuffer payload, InetAddress address, int destPort) {
+        return outbound.submit(payload, new InetSocketAddress(address, destPort));
+    }
+
+    /**
+     * Like {@link #sendAsync(ByteBuffer, InetAddress, int)}, for datagrams whose rate a transfer's
+     * congestion window already sets, such as file chunks: kept in order with the destination's
+     * other traffic, but not held to the flat per-peer rate.
+     */
+    public CompletableFuture<Void> sendWindowed(ByteBuffer payload, InetAddress address, int destPort) {
+        return outbound.submit(payload, new InetSocketAddress(address, destPort), false);
+    }
+
+    private void sendNow(ByteBuffer buffer, InetSocketAddress target) throws IOException {
+        DatagramChannel channel = shards[0].channel;
+
+        // A non-blocking send returns 0 when the kernel send buffer is full; back off briefly and retry
+        int attempts = 0;
+        while (channel.send(buffer, target) == 0) {
+            if (++attempts >= MAX_SEND_ATTEMPTS) {
+                throw new IOException("Send buffer full, dropped datagram to " + target);
+            }
+            LockSupport.parkNanos(50_000);
+        }
+        if (VerboseLogger.isEnabled(LogCategory.SEND)) {
+            VerboseLogger.send("To {}:{}", target.getAddress().getHostAddress(), target.getPort());
+        }
+    }
 
+    /**
+     * Starts one receive loop per shard, each on its own dedicated thread, and hands every
+     * datagram to {@code sink} on that thread. The sink owns each datagram and must release it.
+     * Do not mix this with {@link #receiveDatagram()}.
+     */
+    public void startReceiving(Consumer<ReceivedDatagram> sink) throws IOException {
+        for (Shard shard : shards) {
+            Selector selector = Selector.open();
+            shard.channel.register(selector, SelectionKey.OP_READ, shard);
+            Thread loop = new Thread(() -> runShard(shard, selector, sink), "lsnp-rx-" + shard.index);
+            loop.setDaemon(true);
+            loop.start();
+        }
+    }
+
+    private void runShard(Shard shard, Selector selector, Consumer<ReceivedDatagram> sink) {
+        ArrayDeque<ReceivedDatagram> batch = new ArrayDeque<>();
         try {
-            socket.receive(packet);
-            this.lastSenderAddress = packet.getAddress();
-            this.lastSenderPort = packet.getPort();
-            String received = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
-            if (verbose) {
-                System.out.println("[RECV] From " + packet.getAddress().getHostAddress() +
-                        ":" + packet.getPort() + " - " + received);
+            while (!closed) {
+                if (selector.select(SELECT_TIMEOUT_MS) == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                drainShard(shard, batch);
+
+                ReceivedDatagram datagram;
+                while ((datagram = batch.poll()) != null) {
+                    logReceived(datagram);
+                    try {
+                        sink.accept(datagram);
+                    } catch (RuntimeException e) {
+                        datagram.release();
+                        System.err.println("Receive handler error on shard " + shard.index + ": " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                System.err.println("Receive loop for shard " + shard.index + " stopped: " + e.getMessage());
             }
-            return received;
-        } catch (SocketTimeoutException e) {
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Legacy text receive. Prefer {@link #receiveDatagram()}, which carries the sender
+     * with the payload instead of going through the shared last-sender fields.
+     */
+    public String receiveMessage() throws IOException {
+        ReceivedDatagram datagram = receiveDatagram();
+        if (datagram == null) {
             return null;
         }
+        try {
+            this.lastSenderAddress = datagram.getSenderAddress();
+            this.lastSenderPort = datagram.getSenderPort();
+            if (WireFormat.detect(datagram.payload()) == WireFormat.BINARY) {
+                // Text callers get LSNP-B messages re-serialized as text lines
+                return MessageParser.serialize(MessageParser.parse(datagram.payload()).asMap());
+            }
+            return datagram.text();
+        } finally {
+            datagram.release();
+        }
+    }
+
+    /**
+     * Returns the next datagram from any shard, waiting up to one second for one to arrive,
+     * or null on timeout. The caller owns the result and must {@link ReceivedDatagram#release()} it.
+     */
+    public ReceivedDatagram receiveDatagram() throws IOException {
+        if (ready.isEmpty()) {
+            if (pullSelector.select(SELECT_TIMEOUT_MS) == 0) {
+                return null;
+            }
+            for (SelectionKey key : pullSelector.selectedKeys()) {
+                drainShard((Shard) key.attachment(), ready);
+            }
+            pullSelector.selectedKeys().clear();
+            if (ready.isEmpty()) {
+                return null;
+            }
+        }
+
+        ReceivedDatagram next = ready.poll();
+        logReceived(next);
+        return next;
+    }
+
+    // Pull every datagram the kernel has queued so one wakeup serves a whole burst.
+    private void drainShard(Shard shard, ArrayDeque<ReceivedDatagram> out) throws IOException {
+        shard.wakeups.incrementAndGet();
+        for (int i = 0; i < MAX_DRAIN_PER_WAKEUP; i++) {
+            ByteBuffer buffer = receivePool.tryAcquire();
+            if (buffer == null) {
+                if (!dropOne(shard)) {
+                    break;
+                }
+                continue;
+            }
+            InetSocketAddress from = (InetSocketAddress) shard.channel.receive(buffer);
+            if (from == null) {
+                receivePool.release(buffer);
+                break;
+            }
+            buffer.flip();
+            shard.datagrams.incrementAndGet();
+            shard.bytes.addAndGet(buffer.remaining());
+            out.add(new ReceivedDatagram(buffer, from.getAddress(), from.getPort(), receivePool));
+        }
+    }
+
+    // Every pooled buffer is held by a queued datagram: take the next one off the socket and drop
+    // it, so the kernel queue keeps moving and the sender's retransmission covers it
+    private boolean dropOne(Shard shard) throws IOException {
+        if (shard.scratch == null) {
+            shard.scratch = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        }
+        shard.scratch.clear();
+        InetSocketAddress from = (InetSocketAddress) shard.channel.receive(shard.scratch);
+        if (from == null) {
+            return false;
+        }
+        if (shard.dropped.incrementAndGet() % 1000 == 1) {
+            VerboseLogger.drop("Receive queue full on shard {}, dropped datagram from {}", shard.index,
+                    from.getAddress().getHostAddress());
+        }
+        return true;
+    }
+
+    private void logReceived(ReceivedDatagram datagram) {
+        if (VerboseLogger.isEnabled(LogCategory.RECV)) {
+            String body = WireFormat.detect(datagram.payload()) == WireFormat.BINARY
+                    ? "[LSNP-B, " + datagram.length() + " bytes]"
+                    : datagram.text();
+            VerboseLogger.recv("From {} - {}", datagram.getSenderAddress().getHostAddress() + ":" + datagram.getSenderPort(),
+                    body);
+        }
     }
 
     public void close() {
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
-            if (verbose)
-                System.out.println("[INFO] Socket closed");
+        closed = true;
+        outbound.shutdown();
+        try {
+            pullSelector.close();
+        } catch (IOException ignored) {
         }
+        for (Shard shard : shards) {
+            if (shard.channel.isOpen()) {
+                try {
+                    shard.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        VerboseLogger.log("Socket closed");
     }
 
     public int getPort() {
         return port;
     }
 
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /** One line per shard with datagram, byte and wakeup counts since startup. */
+    public List<String> getShardStats() {
+        List<String> stats = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            long datagrams = shard.datagrams.get();
+            long wakeups = shard.wakeups.get();
+            stats.add("Shard " + shard.index + ": " + datagrams + " datagrams, " + shard.bytes.get() + " bytes, "
+                    + wakeups + " wakeups (" + (wakeups == 0 ? 0 : datagrams / wakeups) + " per wakeup), "
+                    + shard.dropped.get() + " dropped with the receive queue full");
+        }
+        return stats;
+    }
+
+    /** Sender of the last message returned by {@link #receiveMessage()}. */
     public InetAddress getLastSenderAddress() {
         return lastSenderAddress;
     }
@@ -68,4 +374,4 @@ public class UDPSocketManager {
     public int getLastSenderPort() {
         return lastSenderPort;
     }
-}
\ No newline at end of file
+}
@@ -1,82 +1,976 @@
 package main.data;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import main.utils.DeltaSignatures;
+import main.utils.TransferProgress;
 import main.utils.VerboseLogger;
+import main.utils.XorFec;
 
+/**
+ * Receives files straight to disk. An accepted offer preallocates {@code <name>.part} in the
+ * download directory at its full FILESIZE; every chunk is written at its own offset as it
+ * arrives and recorded in a bitmap. Only the chunk being written is ever held in memory.
+ * On completion the part file is renamed to its final name.
+ *
+ * <p>When the offer announced a CHUNK_SIZE, the bitmap is also saved every so often to a
+ * manifest, {@code <name>.part.lsnp}, after the part file is flushed. Manifests found at startup
+ * let a transfer continue after a restart: by FILEID if the sender is still sending, or by
+ * FILEHASH when the same file is offered again.
+ *
+ * <p>If the offer carried a FILEHASH, a SHA-256 runs over the file as it arrives: each chunk that
+ * extends the contiguous prefix is hashed from the datagram, and chunks that arrived ahead of a
+ * gap are read back once the gap fills. The file is only renamed into place if the hash matches,
+ * so completing a transfer never takes a second pass over the file.
+ */
 public class FileChunkStore {
-    private final Map<String, Map<Integer, String>> store = new HashMap<>();
-    private final Map<String, Integer> totalChunksMap = new HashMap<>();
+    private static final Path DOWNLOAD_DIR = Paths.get(System.getProperty("lsnp.downloadDir", "downloads"));
+    private static final String MANIFEST_SUFFIX = ".lsnp";
+    // The manifest is rewritten after this many new chunks or this long, whichever comes first
+    private static final int MANIFEST_EVERY_CHUNKS = 1024;
+    private static final long MANIFEST_INTERVAL_MS = 2000;
+    // FILE_REPAIR parities held per file while their block is missing more than one chunk
+    private static final int MAX_PENDING_REPAIRS = 64;
 
-    public synchronized void addChunk(String fileId, int chunkIndex, int totalChunks, String base64Chunk) {
-        if (!store.containsKey(fileId)) {
-            store.put(fileId, new HashMap<>());
-            totalChunksMap.put(fileId, totalChunks);
-            VerboseLogger.log("Created new chunk map for fileId " + fileId + " expecting " + totalChunks + " chunks");
+    private final Map<String, IncomingFile> files = new ConcurrentHashMap<>();
+    // Partial downloads left by an earlier run, by FILEID, until they are resumed
+    private final Map<String, Manifest> resumable = new ConcurrentHashMap<>();
+
+    public enum Result { STORED, DUPLICATE, UNKNOWN }
+
+    /** What a FILE_ACK reports: every chunk below {@code cumulative} plus the ranges listed in {@code sack}. */
+    public record AckState(int cumulative, String sack, int repaired) {
+    }
+
+    /** Takes chunks read by {@link #readHeld}; {@code data} is only valid during the call. */
+    public interface ChunkSink {
+        void accept(int chunkIndex, int totalChunks, ByteBuffer data);
+    }
+
+    // XOR of chunks [first, first + count), zero-padded to the chunk size
+    private record Repair(int count, byte[] parity) {
+    }
+
+    // What a manifest on disk says about one partial download
+    private record Manifest(String fileId, String fileName, long fileSize, int chunkSize, String fileHash,
+            String senderId, Path partPath, long[] received) {
+    }
+
+    private static final class IncomingFile {
+        final String fileName;
+        final long fileSize;
+        final int chunkSize;
+        final Path partPath;
+        final Path finalPath;
+        String fileHash;
+        String senderId;
+        // SHA-256 over chunks [0, hashedChunks), guarded by hashLock; null when there is nothing to check,
+        // and once the file is verified or discarded
+        final Object hashLock = new Object();
+        MessageDigest digest;
+        int hashedChunks = 0;
+        ByteBuffer hashBuffer;
+        final Object manifestLock = new Object();
+        int savedCount = 0;
+        long savedAtMillis = System.currentTimeMillis();
+        FileChannel channel;
+        int totalChunks = -1;
+        long[] received;
+        int receivedCount = 0;
+        // Bytes written since this run opened the file, and when the first of them arrived
+        long sessionBytes = 0;
+        long firstChunkNanos = -1;
+        int cumulative = 0;
+        int highest = -1;
+        final TreeMap<Integer, Repair> repairs = new TreeMap<>();
+        int repaired = 0;
+        boolean complete = false;
+        // Verified and moved to finalPath, so it can be served to other receivers
+        boolean saved = false;
+        // finalPath's modification time when saved; a file changed since is no longer trusted to match
+        long savedModifiedMillis;
+        // Earlier download of the same name that unchanged chunks can be copied from, or null
+        Path basisPath;
+
+        IncomingFile(String fileName, long fileSize, int chunkSize, Path partPath, Path finalPath) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.partPath = partPath;
+            this.finalPath = finalPath;
+        }
+
+        boolean has(int index) {
+            return (received[index >>> 6] & (1L << index)) != 0;
+        }
+
+        void mark(int index) {
+            received[index >>> 6] |= 1L << index;
+            receivedCount++;
+            highest = Math.max(highest, index);
+            while (cumulative < totalChunks && has(cumulative)) {
+                cumulative++;
+            }
+        }
+
+        void expect(int chunks) {
+            totalChunks = chunks;
+            received = new long[(chunks + 63) >>> 6];
         }
 
-        Map<Integer, String> chunks = store.get(fileId);
-        if (!chunks.containsKey(chunkIndex)) {
-            chunks.put(chunkIndex, base64Chunk);
-            VerboseLogger.log("Stored chunk " + chunkIndex + "/" + (totalChunks - 1) + " for fileId " + fileId);
-        } else {
-            VerboseLogger.log("Chunk " + chunkIndex + " for fileId " + fileId + " is already stored, ignoring");
+        Path manifestPath() {
+            return partPath.resolveSibling(partPath.getFileName() + MANIFEST_SUFFIX);
         }
     }
 
-    public synchronized boolean isComplete(String fileId) {
-        if (!store.containsKey(fileId)) {
-            return false;
+    public FileChunkStore() {
+        loadManifests();
+    }
+
+    /**
+     * Prepares to receive an accepted file; chunks for files that were never opened are refused.
+     * A {@code chunkSize} of 0 means the offer did not announce one and it is taken from the chunks.
+     * If a partial download of the same FILEHASH from the same sender is on disk, it is continued.
+     * Otherwise chunks of the same FILEHASH already received this run, from any sender, are copied
+     * locally instead of being sent again.
+     *
+     * @return how many chunks are already on disk, 0 if everything is still to come
+     */
+    public int open(String fileId, String fileName, long fileSize, int chunkSize, String fileHash, String senderId)
+            throws IOException {
+        if (fileSize < 0 || chunkSize < 0) {
+            throw new IOException("Invalid FILESIZE " + fileSize + " or CHUNK_SIZE " + chunkSize + " for " + fileName);
         }
-        Map<Integer, String> chunks = store.get(fileId);
-        int expected = totalChunksMap.getOrDefault(fileId, -1);
-        boolean complete = expected != -1 && chunks.size() == expected;
+        Manifest partial = chunkSize > 0 ? findResumable(fileHash, fileSize, senderId) : null;
+        if (partial != null && resumable.remove(partial.fileId(), partial)) {
+            return resume(partial, fileId, chunkSize).receivedCount;
+        }
+
+        Files.createDirectories(DOWNLOAD_DIR);
+        Path finalPath = uniquePath(safeName(fileName));
+        Path partPath = finalPath.resolveSibling(finalPath.getFileName() + ".part");
 
-        VerboseLogger.log("FileId " + fileId + " completion check: " + chunks.size() + "/" + expected
-                + " chunks received. Complete? " + complete);
-        return complete;
+        IncomingFile file = new IncomingFile(fileName, fileSize, chunkSize, partPath, finalPath);
+        file.fileHash = fileHash;
+        file.senderId = senderId;
+        if (chunkSize > 0 && fileSize > 0) {
+            file.expect((int) ((fileSize + chunkSize - 1) / chunkSize));
+        }
+        if (fileHash != null && chunkSize > 0) {
+            file.digest = newDigest();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(partPath.toFile(), "rw")) {
+            raf.setLength(fileSize);
+        }
+        file.channel = FileChannel.open(partPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (file.digest != null && file.received != null) {
+            file.basisPath = findBasis(safeName(fileName), finalPath);
+        }
+        IncomingFile previous = files.put(fileId, file);
+        if (previous != null) {
+            abort(previous);
+        }
+        VerboseLogger.log("Receiving fileId {} into {} ({} bytes)", fileId, partPath, fileSize);
+        return copyHeld(fileId, file);
     }
 
-    public synchronized byte[] reassemble(String fileId) {
-        if (!isComplete(fileId)) {
-            VerboseLogger.log("Cannot reassemble fileId " + fileId + ": incomplete chunks");
+    // Fills a fresh download from another copy of the same content: a saved file, whatever chunk
+    // size it came in, or the chunks held so far of one still arriving in the same chunk size.
+    // Copied chunks go through writeChunk, so they are hashed and recorded like received ones.
+    private int copyHeld(String fileId, IncomingFile file) {
+        if (file.digest == null || file.received == null) {
+            return 0;
+        }
+        IncomingFile held = null;
+        boolean saved = false;
+        for (IncomingFile other : files.values()) {
+            if (other == file) {
+                continue;
+            }
+            synchronized (other) {
+                if (other.fileSize != file.fileSize || !file.fileHash.equalsIgnoreCase(other.fileHash)) {
+                    continue;
+                }
+                if (other.saved) {
+                    held = other;
+                    saved = true;
+                    break;
+                }
+                if (!other.complete && other.received != null && other.chunkSize == file.chunkSize
+                        && other.receivedCount > 0) {
+                    held = other;
+                }
+            }
+        }
+        if (held == null) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(file.chunkSize);
+        int copied = 0;
+        try (FileChannel savedChannel = saved ? FileChannel.open(held.finalPath, StandardOpenOption.READ) : null) {
+            if (saved && (savedChannel.size() != file.fileSize
+                    || Files.getLastModifiedTime(held.finalPath).toMillis() != held.savedModifiedMillis)) {
+                VerboseLogger.log("{} changed since it was received, not copying from it", held.finalPath);
+                return 0;
+            }
+            for (int i = 0; i < file.totalChunks; i++) {
+                if (!saved) {
+                    synchronized (held) {
+                        if (held.complete || !held.has(i)) {
+                            continue;
+                        }
+                    }
+                }
+                // The file's own chunk geometry applies to the other copy too: the bytes are the same
+                ByteBuffer data = readChunk(saved ? savedChannel : held.channel, file, i, buffer);
+                if (writeChunk(fileId, i, file.totalChunks, data) == Result.STORED) {
+                    copied++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            VerboseLogger.log("Stopped copying fileId {} from {}: {}", fileId, saved ? held.finalPath : held.partPath,
+                    e.getMessage());
+        }
+        synchronized (file) {
+            file.sessionBytes = 0;
+            file.firstChunkNanos = -1;
+        }
+        VerboseLogger.log("Copied {} chunks of fileId {} from {}", copied, fileId,
+                saved ? held.finalPath : held.partPath);
+        return copied;
+    }
+
+    // The most recently modified earlier download of this name: "name.ext" or "name (n).ext"
+    private static Path findBasis(String name, Path finalPath) throws IOException {
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        Path basis = null;
+        long newest = Long.MIN_VALUE;
+        Path path = DOWNLOAD_DIR.resolve(name);
+        for (int i = 1; Files.exists(path); i++) {
+            if (!path.equals(finalPath) && Files.isRegularFile(path) && Files.size(path) <= Integer.MAX_VALUE) {
+                long modified = Files.getLastModifiedTime(path).toMillis();
+                if (modified > newest) {
+                    newest = modified;
+                    basis = path;
+                }
+            }
+            path = DOWNLOAD_DIR.resolve(base + " (" + i + ")" + ext);
+        }
+        return basis;
+    }
+
+    /** Name of the earlier copy a download can be rebuilt from with {@link #copyFromBasis}, or null. */
+    public String basisName(String fileId) {
+        IncomingFile file = files.get(fileId);
+        if (file == null || file.basisPath == null) {
             return null;
         }
+        synchronized (file) {
+            return file.complete ? null : file.basisPath.getFileName().toString();
+        }
+    }
 
-        Map<Integer, String> chunks = store.get(fileId);
-        int totalChunks = totalChunksMap.get(fileId);
+    /**
+     * Copies every missing chunk that {@code signatures} finds in the download's earlier copy,
+     * wherever it sits there. Copied chunks go through writeChunk, so they are hashed and recorded
+     * like received ones. Returns how many were copied.
+     */
+    public int copyFromBasis(String fileId, DeltaSignatures signatures) throws IOException {
+        IncomingFile file = files.get(fileId);
+        BitSet wanted = missing(fileId);
+        if (file == null || file.basisPath == null || wanted == null || file.chunkSize != signatures.chunkSize
+                || file.totalChunks != signatures.totalChunks) {
+            return 0;
+        }
+        int[] copied = {0};
+        try (FileChannel basis = FileChannel.open(file.basisPath, StandardOpenOption.READ)) {
+            ByteBuffer mapped = basis.map(FileChannel.MapMode.READ_ONLY, 0, basis.size());
+            signatures.scan(mapped, wanted, (chunkIndex, data) -> {
+                if (writeChunk(fileId, chunkIndex, file.totalChunks, data) == Result.STORED) {
+                    copied[0]++;
+                }
+            });
+        }
+        VerboseLogger.log("Copied {} chunks of fileId {} from {}", copied[0], fileId, file.basisPath);
+        return copied[0];
+    }
 
-        List<byte[]> decodedChunks = new ArrayList<>(totalChunks);
-        int totalSize = 0;
+    /** True if a partial download of this content from this sender is waiting on disk. */
+    public boolean canResume(String fileHash, long fileSize, String senderId) {
+        return findResumable(fileHash, fileSize, senderId) != null;
+    }
 
-        // Assemble chunks in order from 0 to totalChunks-1
+    private Manifest findResumable(String fileHash, long fileSize, String senderId) {
+        if (fileHash == null) {
+            return null;
+        }
+        for (Manifest manifest : resumable.values()) {
+            if (fileHash.equalsIgnoreCase(manifest.fileHash()) && manifest.fileSize() == fileSize
+                    && Objects.equals(senderId, manifest.senderId())) {
+                return manifest;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reopens a download left by an earlier run whose sender is still sending under the same
+     * FILEID. Returns true if it was reopened by this call.
+     */
+    public boolean resumeDormant(String fileId) throws IOException {
+        Manifest partial = fileId == null ? null : resumable.remove(fileId);
+        if (partial == null) {
+            return false;
+        }
+        resume(partial, fileId, partial.chunkSize());
+        return true;
+    }
+
+    // Continues a partial download under a (possibly new) FILEID and chunk size. A chunk counts as
+    // present only if every byte of it was inside chunks the manifest recorded.
+    private IncomingFile resume(Manifest partial, String fileId, int chunkSize) throws IOException {
+        Path partPath = partial.partPath();
+        String partName = partPath.getFileName().toString();
+        Path finalPath = partPath.resolveSibling(partName.substring(0, partName.length() - ".part".length()));
+        IncomingFile file = new IncomingFile(partial.fileName(), partial.fileSize(), chunkSize, partPath, finalPath);
+        file.fileHash = partial.fileHash();
+        file.senderId = partial.senderId();
+        // The hash starts over and reads back what is already on disk as the prefix grows
+        if (file.fileHash != null) {
+            file.digest = newDigest();
+        }
+        int totalChunks = (int) ((partial.fileSize() + chunkSize - 1) / chunkSize);
+        file.expect(totalChunks);
+        long[] old = partial.received();
+        int oldChunkSize = partial.chunkSize();
         for (int i = 0; i < totalChunks; i++) {
-            String base64Chunk = chunks.get(i);
-            if (base64Chunk == null) {
-                VerboseLogger.log("Missing chunk " + i + " for fileId " + fileId + ", cannot reassemble");
+            long start = (long) i * chunkSize;
+            long end = Math.min(partial.fileSize(), start + chunkSize);
+            boolean present = true;
+            for (long j = start / oldChunkSize; present && j <= (end - 1) / oldChunkSize; j++) {
+                present = j >>> 6 < old.length && (old[(int) (j >>> 6)] & (1L << j)) != 0;
+            }
+            if (present) {
+                file.mark(i);
+            }
+        }
+        file.channel = FileChannel.open(partPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!partial.fileId().equals(fileId)) {
+            Files.deleteIfExists(file.manifestPath());
+        }
+        IncomingFile previous = files.put(fileId, file);
+        if (previous != null) {
+            abort(previous);
+        }
+        file.savedCount = -1;
+        saveManifest(fileId, file);
+        VerboseLogger.log("Resuming fileId {} in {}: {} chunks already received", fileId, partPath,
+                file.receivedCount);
+        return file;
+    }
+
+    public boolean isKnown(String fileId) {
+        return fileId != null && (files.containsKey(fileId) || resumable.containsKey(fileId));
+    }
+
+    /**
+     * Writes one chunk at its offset. Every chunk but the last is the same size, so the offset
+     * is {@code index * data length}; the last chunk ends at FILESIZE.
+     *
+     * @throws IllegalArgumentException if the chunk does not fit the file that was offered
+     */
+    public Result writeChunk(String fileId, int chunkIndex, int totalChunks, ByteBuffer data) throws IOException {
+        IncomingFile file = files.get(fileId);
+        if (file == null) {
+            return Result.UNKNOWN;
+        }
+        long offset;
+        synchronized (file) {
+            if (file.complete) {
+                return Result.DUPLICATE;
+            }
+            if (file.totalChunks < 0) {
+                if (totalChunks <= 0 || (file.chunkSize > 0
+                        && totalChunks != (file.fileSize + file.chunkSize - 1) / file.chunkSize)) {
+                    throw new IllegalArgumentException("Invalid TOTAL_CHUNKS " + totalChunks);
+                }
+                file.expect(totalChunks);
+                VerboseLogger.log("Expecting {} chunks for fileId {}", totalChunks, fileId);
+            } else if (file.totalChunks != totalChunks) {
+                throw new IllegalArgumentException("TOTAL_CHUNKS changed from " + file.totalChunks + " to " + totalChunks);
+            }
+            if (chunkIndex < 0 || chunkIndex >= totalChunks) {
+                throw new IllegalArgumentException("Chunk index " + chunkIndex + " out of range");
+            }
+            if (file.has(chunkIndex)) {
+                VerboseLogger.log("Chunk {} for fileId {} is already stored, ignoring", chunkIndex, fileId);
+                return Result.DUPLICATE;
+            }
+            if (file.chunkSize > 0 && chunkIndex < totalChunks - 1 && data.remaining() != file.chunkSize) {
+                throw new IllegalArgumentException("Chunk " + chunkIndex + " is " + data.remaining() + " bytes, expected "
+                        + file.chunkSize);
+            }
+            offset = chunkIndex == totalChunks - 1
+                    ? file.fileSize - data.remaining()
+                    : (long) chunkIndex * data.remaining();
+            if (offset < 0 || offset + data.remaining() > file.fileSize) {
+                throw new IllegalArgumentException("Chunk " + chunkIndex + " does not fit in " + file.fileSize + " bytes");
+            }
+        }
+
+        // Positional writes don't share channel state, so chunks of one file can be written concurrently
+        ByteBuffer src = data.duplicate();
+        while (src.hasRemaining()) {
+            file.channel.write(src, offset + src.position() - data.position());
+        }
+
+        boolean saveDue;
+        synchronized (file) {
+            if (file.complete || file.has(chunkIndex)) {
+                return Result.DUPLICATE;
+            }
+            file.mark(chunkIndex);
+            file.sessionBytes += data.remaining();
+            if (file.firstChunkNanos < 0) {
+                file.firstChunkNanos = System.nanoTime();
+            }
+            saveDue = file.chunkSize > 0 && file.receivedCount < file.totalChunks
+                    && (file.receivedCount - file.savedCount >= MANIFEST_EVERY_CHUNKS
+                            || System.currentTimeMillis() - file.savedAtMillis >= MANIFEST_INTERVAL_MS);
+        }
+        VerboseLogger.log("Stored chunk {}/{} for fileId {}", chunkIndex, totalChunks - 1, fileId);
+        advanceHash(file, chunkIndex, data);
+        if (saveDue) {
+            saveManifest(fileId, file);
+        }
+        return Result.STORED;
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Hashes every chunk now contiguous with the hashed prefix: the one just written straight
+    // from its datagram, any that arrived ahead of it from the part file
+    private void advanceHash(IncomingFile file, int chunkIndex, ByteBuffer data) throws IOException {
+        if (file.digest == null) {
+            return;
+        }
+        synchronized (file.hashLock) {
+            // Dropped once the file is verified or discarded
+            if (file.digest == null) {
+                return;
+            }
+            while (true) {
+                int next = file.hashedChunks;
+                synchronized (file) {
+                    if (file.received == null || next >= file.totalChunks || !file.has(next)) {
+                        return;
+                    }
+                }
+                if (next == chunkIndex) {
+                    file.digest.update(data.duplicate());
+                } else {
+                    hashFromDisk(file, next);
+                }
+                file.hashedChunks++;
+            }
+        }
+    }
+
+    // Caller holds hashLock
+    private static void hashFromDisk(IncomingFile file, int chunkIndex) throws IOException {
+        if (file.hashBuffer == null) {
+            file.hashBuffer = ByteBuffer.allocateDirect(file.chunkSize);
+        }
+        file.digest.update(readChunk(file.channel, file, chunkIndex, file.hashBuffer));
+    }
+
+    // Reads a stored chunk back from the file into buffer, flipped for reading
+    private static ByteBuffer readChunk(FileChannel channel, IncomingFile file, int chunkIndex, ByteBuffer buffer)
+            throws IOException {
+        long offset = (long) chunkIndex * file.chunkSize;
+        buffer.clear().limit((int) Math.min(file.chunkSize, file.fileSize - offset));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Part file shorter than expected: " + file.partPath);
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Takes the XOR parity of chunks {@code [first, first + count)} from a FILE_REPAIR. If exactly
+     * one of them is missing it is rebuilt from the others and stored; if more are missing the
+     * parity is kept until all but one have arrived.
+     *
+     * @return the rebuilt chunk index, or -1 if nothing was rebuilt
+     * @throws IllegalArgumentException if the block does not fit the file
+     */
+    public int addRepair(String fileId, int first, int count, ByteBuffer parity) throws IOException {
+        IncomingFile file = files.get(fileId);
+        if (file == null || file.chunkSize <= 0) {
+            return -1;
+        }
+        synchronized (file) {
+            if (file.complete || file.received == null) {
+                return -1;
+            }
+            if (count < 1 || first < 0 || first > file.totalChunks - count) {
+                throw new IllegalArgumentException("Repair block " + first + "+" + count + " out of range");
+            }
+            if (parity.remaining() > file.chunkSize) {
+                throw new IllegalArgumentException("Repair block is " + parity.remaining() + " bytes, expected "
+                        + file.chunkSize);
+            }
+            if (file.repairs.size() >= MAX_PENDING_REPAIRS) {
+                file.repairs.pollFirstEntry();
+            }
+            byte[] bytes = new byte[file.chunkSize];
+            parity.duplicate().get(bytes, 0, parity.remaining());
+            file.repairs.put(first, new Repair(count, bytes));
+        }
+        return repairBlock(fileId, file, first);
+    }
+
+    /**
+     * Called after a chunk is stored: if a held parity covers it and its block is now missing a
+     * single chunk, that chunk is rebuilt. Returns the rebuilt index, or -1.
+     */
+    public int repairAfter(String fileId, int chunkIndex) throws IOException {
+        IncomingFile file = files.get(fileId);
+        if (file == null) {
+            return -1;
+        }
+        int first;
+        synchronized (file) {
+            Map.Entry<Integer, Repair> block = file.repairs.floorEntry(chunkIndex);
+            if (block == null || chunkIndex >= block.getKey() + block.getValue().count()) {
+                return -1;
+            }
+            first = block.getKey();
+        }
+        return repairBlock(fileId, file, first);
+    }
+
+    private int repairBlock(String fileId, IncomingFile file, int first) throws IOException {
+        Repair repair;
+        int missing = -1;
+        synchronized (file) {
+            repair = file.repairs.get(first);
+            if (repair == null || file.complete || file.received == null) {
+                return -1;
+            }
+            for (int i = first; i < first + repair.count(); i++) {
+                if (!file.has(i)) {
+                    if (missing >= 0) {
+                        return -1;
+                    }
+                    missing = i;
+                }
+            }
+            file.repairs.remove(first);
+            if (missing < 0) {
+                return -1;
+            }
+        }
+
+        byte[] rebuilt = repair.parity();
+        ByteBuffer buffer = ByteBuffer.allocate(file.chunkSize);
+        for (int i = first; i < first + repair.count(); i++) {
+            if (i != missing) {
+                XorFec.xor(rebuilt, readChunk(file.channel, file, i, buffer));
+            }
+        }
+        int length = (int) Math.min(file.chunkSize, file.fileSize - (long) missing * file.chunkSize);
+        if (writeChunk(fileId, missing, file.totalChunks, ByteBuffer.wrap(rebuilt, 0, length)) != Result.STORED) {
+            return -1;
+        }
+        synchronized (file) {
+            file.repaired++;
+        }
+        VerboseLogger.log("Rebuilt chunk {} of fileId {} from parity", missing, fileId);
+        return missing;
+    }
+
+    // The part file is flushed before the manifest is replaced, so a manifest never lists a
+    // chunk that is not on disk. Written to a temporary file and moved into place.
+    private void saveManifest(String fileId, IncomingFile file) throws IOException {
+        synchronized (file.manifestLock) {
+            long[] snapshot;
+            int count;
+            synchronized (file) {
+                if (file.complete || file.received == null || file.receivedCount == file.savedCount) {
+                    return;
+                }
+                snapshot = file.received.clone();
+                count = file.receivedCount;
+                file.savedCount = count;
+                file.savedAtMillis = System.currentTimeMillis();
+            }
+            file.channel.force(false);
+
+            ByteBuffer bitmap = ByteBuffer.allocate(snapshot.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            bitmap.asLongBuffer().put(snapshot);
+            StringBuilder sb = new StringBuilder();
+            sb.append("FILEID: ").append(fileId).append("\n");
+            sb.append("FILENAME: ").append(file.fileName).append("\n");
+            sb.append("FILESIZE: ").append(file.fileSize).append("\n");
+            sb.append("CHUNK_SIZE: ").append(file.chunkSize).append("\n");
+            if (file.fileHash != null) {
+                sb.append("FILEHASH: ").append(file.fileHash).append("\n");
+            }
+            if (file.senderId != null) {
+                sb.append("FROM: ").append(file.senderId).append("\n");
+            }
+            sb.append("RECEIVED: ").append(Base64.getEncoder().encodeToString(bitmap.array())).append("\n");
+
+            Path manifest = file.manifestPath();
+            Path temp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+            Files.writeString(temp, sb, StandardCharsets.UTF_8);
+            Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            VerboseLogger.log("Saved manifest for fileId {}: {} of {} chunks", fileId, count, file.totalChunks);
+        }
+    }
+
+    private void loadManifests() {
+        if (!Files.isDirectory(DOWNLOAD_DIR)) {
+            return;
+        }
+        try (DirectoryStream<Path> manifests = Files.newDirectoryStream(DOWNLOAD_DIR, "*.part" + MANIFEST_SUFFIX)) {
+            for (Path path : manifests) {
+                Manifest manifest = readManifest(path);
+                if (manifest != null) {
+                    resumable.put(manifest.fileId(), manifest);
+                    VerboseLogger.log("Found partial download {} (fileId {})", manifest.partPath(), manifest.fileId());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not scan " + DOWNLOAD_DIR + " for partial downloads: " + e.getMessage());
+        }
+    }
+
+    // Null if the manifest is unreadable or no longer matches its part file
+    private static Manifest readManifest(Path path) {
+        try {
+            Map<String, String> fields = new HashMap<>();
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                int colon = line.indexOf(": ");
+                if (colon > 0) {
+                    fields.put(line.substring(0, colon), line.substring(colon + 2));
+                }
+            }
+            String name = path.getFileName().toString();
+            Path partPath = path.resolveSibling(name.substring(0, name.length() - MANIFEST_SUFFIX.length()));
+            long fileSize = Long.parseLong(fields.get("FILESIZE"));
+            int chunkSize = Integer.parseInt(fields.get("CHUNK_SIZE"));
+            if (chunkSize <= 0 || fields.get("FILEID") == null || !Files.isRegularFile(partPath)
+                    || Files.size(partPath) != fileSize) {
+                VerboseLogger.log("Ignoring stale manifest {}", path);
                 return null;
             }
-            byte[] decoded = Base64.getDecoder().decode(base64Chunk);
-            decodedChunks.add(decoded);
-            totalSize += decoded.length;
+            ByteBuffer bitmap = ByteBuffer.wrap(Base64.getDecoder().decode(fields.get("RECEIVED")))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            long[] received = new long[bitmap.remaining() / Long.BYTES];
+            bitmap.asLongBuffer().get(received);
+            return new Manifest(fields.get("FILEID"), fields.get("FILENAME"), fileSize, chunkSize,
+                    fields.get("FILEHASH"), fields.get("FROM"), partPath, received);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read manifest " + path + ": " + e.getMessage());
+            return null;
         }
+    }
 
-        // Combine all chunk byte arrays into one
-        byte[] fileBytes = new byte[totalSize];
-        int pos = 0;
-        for (byte[] chunk : decodedChunks) {
-            System.arraycopy(chunk, 0, fileBytes, pos, chunk.length);
-            pos += chunk.length;
+    public boolean isComplete(String fileId) {
+        IncomingFile file = files.get(fileId);
+        if (file == null) {
+            return false;
         }
+        synchronized (file) {
+            return !file.complete && file.totalChunks >= 0 && file.receivedCount == file.totalChunks;
+        }
+    }
 
-        VerboseLogger.log("Successfully reassembled fileId " + fileId + " with size " + totalSize + " bytes");
+    /**
+     * Snapshot of what has arrived, listing at most {@code maxRanges} ranges above the cumulative
+     * index as {@code first-last} (or a single index), comma separated. Null for unknown files.
+     */
+    public AckState ackState(String fileId, int maxRanges) {
+        IncomingFile file = files.get(fileId);
+        if (file == null) {
+            return null;
+        }
+        synchronized (file) {
+            if (file.complete || file.received == null) {
+                return new AckState(Math.max(0, file.complete ? file.totalChunks : 0), "", file.repaired);
+            }
+            return new AckState(file.cumulative, ranges(file, file.cumulative, maxRanges), file.repaired);
+        }
+    }
 
-        return fileBytes;
+    /** Files being received, not counting partial downloads waiting to be resumed. */
+    public int activeCount() {
+        int count = 0;
+        for (IncomingFile file : files.values()) {
+            synchronized (file) {
+                count += file.complete ? 0 : 1;
+            }
+        }
+        return count;
     }
 
-    public synchronized void removeFile(String fileId) {
-        store.remove(fileId);
-        totalChunksMap.remove(fileId);
-        VerboseLogger.log("Removed file data for fileId " + fileId);
+    public List<TransferProgress> progress() {
+        List<TransferProgress> list = new ArrayList<>();
+        for (Map.Entry<String, IncomingFile> entry : files.entrySet()) {
+            IncomingFile file = entry.getValue();
+            synchronized (file) {
+                if (file.complete) {
+                    continue;
+                }
+                long elapsedNanos = file.firstChunkNanos < 0 ? 0 : System.nanoTime() - file.firstChunkNanos;
+                long rate = elapsedNanos <= 0 ? 0 : file.sessionBytes * 1_000_000_000L / elapsedNanos;
+                long done = file.chunkSize > 0
+                        ? Math.min(file.fileSize, (long) file.receivedCount * file.chunkSize)
+                        : file.sessionBytes;
+                list.add(new TransferProgress(entry.getKey(), file.fileName, file.senderId, false,
+                        TransferProgress.State.ACTIVE, done, file.fileSize, rate));
+            }
+        }
+        return list;
     }
 
+    /** Every chunk on disk as ranges for FILE_RESUME HAVE, at most {@code maxRanges} of them. */
+    public String haveRanges(String fileId, int maxRanges) {
+        IncomingFile file = files.get(fileId);
+        if (file == null) {
+            return "";
+        }
+        synchronized (file) {
+            return file.received == null ? "" : ranges(file, 0, maxRanges);
+        }
+    }
+
+    /** Chunks of an open download that have not arrived yet, or null once it is complete or gone. */
+    public BitSet missing(String fileId) {
+        IncomingFile file = files.get(fileId);
+        if (file == null) {
+            return null;
+        }
+        synchronized (file) {
+            if (file.complete || file.received == null) {
+                return null;
+            }
+            BitSet missing = BitSet.valueOf(file.received);
+            missing.flip(0, file.totalChunks);
+            return missing;
+        }
+    }
+
+    // A download of this content, in progress or saved this run, that chunks can be served from
+    private IncomingFile findHeld(String fileHash, int chunkSize) {
+        if (fileHash == null) {
+            return null;
+        }
+        for (IncomingFile file : files.values()) {
+            synchronized (file) {
+                if (file.chunkSize == chunkSize && fileHash.equalsIgnoreCase(file.fileHash)
+                        && (file.saved || (!file.complete && file.received != null))) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chunks of the file with this SHA-256 and chunk size that can be served to other receivers,
+     * as ranges like {@link #haveRanges}. A saved file holds every chunk. Null if there is none here.
+     */
+    public String heldRanges(String fileHash, int chunkSize, int maxRanges) {
+        IncomingFile file = findHeld(fileHash, chunkSize);
+        if (file == null) {
+            return null;
+        }
+        synchronized (file) {
+            if (file.saved) {
+                return file.totalChunks <= 1 ? "0" : "0-" + (file.totalChunks - 1);
+            }
+            return file.received == null ? "" : ranges(file, 0, maxRanges);
+        }
+    }
+
+    /**
+     * Reads every chunk in {@code wanted} that this store holds of the file with this SHA-256 and
+     * chunk size, from the part file or the saved file. Returns how many were passed to {@code sink}.
+     */
+    public int readHeld(String fileHash, int chunkSize, BitSet wanted, ChunkSink sink) throws IOException {
+        IncomingFile file = findHeld(fileHash, chunkSize);
+        if (file == null) {
+            return 0;
+        }
+        boolean saved;
+        synchronized (file) {
+            saved = file.saved;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        int count = 0;
+        try (FileChannel savedChannel = saved ? FileChannel.open(file.finalPath, StandardOpenOption.READ) : null) {
+            for (int i = wanted.nextSetBit(0); i >= 0 && i < file.totalChunks; i = wanted.nextSetBit(i + 1)) {
+                if (!saved) {
+                    synchronized (file) {
+                        if (file.received == null || !file.has(i)) {
+                            continue;
+                        }
+                    }
+                }
+                sink.accept(i, file.totalChunks, readChunk(savedChannel != null ? savedChannel : file.channel,
+                        file, i, buffer));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Caller holds the file's lock
+    private static String ranges(IncomingFile file, int from, int maxRanges) {
+        StringJoiner ranges = new StringJoiner(",");
+        int i = from;
+        for (int count = 0; count < maxRanges; count++) {
+            while (i <= file.highest && !file.has(i)) {
+                i++;
+            }
+            if (i > file.highest) {
+                break;
+            }
+            int first = i;
+            while (i <= file.highest && file.has(i)) {
+                i++;
+            }
+            ranges.add(first == i - 1 ? String.valueOf(first) : first + "-" + (i - 1));
+        }
+        return ranges.toString();
+    }
+
+    /**
+     * Flushes a complete file and moves it to its final name. Returns the saved path, or null if
+     * the file is not complete or was already finished. Later chunks of it count as duplicates.
+     * A file whose SHA-256 does not match the offer's FILEHASH is deleted and an IOException thrown.
+     */
+    public Path finish(String fileId) throws IOException {
+        IncomingFile file = files.get(fileId);
+        if (file == null) {
+            return null;
+        }
+        synchronized (file) {
+            if (file.complete || file.totalChunks < 0 || file.receivedCount != file.totalChunks) {
+                return null;
+            }
+            file.complete = true;
+            file.received = null;
+        }
+        if (file.digest != null) {
+            String actual;
+            synchronized (file.hashLock) {
+                while (file.hashedChunks < file.totalChunks) {
+                    hashFromDisk(file, file.hashedChunks++);
+                }
+                actual = HexFormat.of().formatHex(file.digest.digest());
+                file.digest = null;
+                file.hashBuffer = null;
+            }
+            if (!actual.equalsIgnoreCase(file.fileHash)) {
+                files.remove(fileId, file);
+                discard(file);
+                throw new IOException("SHA-256 is " + actual + ", offer said " + file.fileHash);
+            }
+            VerboseLogger.log("SHA-256 of fileId {} verified", fileId);
+        }
+        synchronized (file.manifestLock) {
+            file.channel.force(false);
+            file.channel.close();
+            Files.move(file.partPath, file.finalPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(file.manifestPath());
+        }
+        long modifiedMillis = Files.getLastModifiedTime(file.finalPath).toMillis();
+        synchronized (file) {
+            file.saved = true;
+            file.savedModifiedMillis = modifiedMillis;
+        }
+        VerboseLogger.log("Saved fileId {} ({} bytes) to {}", fileId, file.fileSize, file.finalPath);
+        return file.finalPath;
+    }
+
+    /** Abandons a transfer and deletes its part file. */
+    public void removeFile(String fileId) {
+        IncomingFile file = files.remove(fileId);
+        if (file != null) {
+            abort(file);
+            VerboseLogger.log("Removed file data for fileId {}", fileId);
+        }
+    }
+
+    private void abort(IncomingFile file) {
+        synchronized (file) {
+            if (file.complete) {
+                return;
+            }
+            file.complete = true;
+        }
+        discard(file);
+    }
+
+    private void discard(IncomingFile file) {
+        synchronized (file.hashLock) {
+            file.digest = null;
+            file.hashBuffer = null;
+        }
+        try {
+            synchronized (file.manifestLock) {
+                file.channel.close();
+                Files.deleteIfExists(file.partPath);
+                Files.deleteIfExists(file.manifestPath());
+            }
+        } catch (IOException e) {
+            System.err.println("Could not remove " + file.partPath + ": " + e.getMessage());
+        }
+    }
+
+    // Offered names come from the network, so only the last path element is used.
+    private static String safeName(String fileName) {
+        String name = fileName == null ? "" : fileName.substring(Math.max(fileName.lastIndexOf('/'),
+                fileName.lastIndexOf('\\')) + 1).replace("\0", "").trim();
+        return name.isEmpty() || name.equals(".") || name.equals("..") ? "download" : name;
+    }
+
+    private static Path uniquePath(String name) {
+        Path path = DOWNLOAD_DIR.resolve(name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; Files.exists(path) || Files.exists(path.resolveSibling(path.getFileName() + ".part")); i++) {
+            path = DOWNLOAD_DIR.resolve(base + " (" + i + ")" + ext);
+        }
+        return path;
+    }
 }
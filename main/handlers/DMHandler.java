@@ -6,6 +6,10 @@ import java.time.Instant;
 import java.util.Map;
 import java.util.UUID;
 import main.UDPSocketManager;
+import main.utils.LsnpField;
+import main.utils.MessageTemplate;
+import main.utils.MessageWriter;
+import main.utils.PeerCapabilities;
 import main.utils.TerminalDisplay;
 import main.utils.TokenValidator;
 import main.utils.VerboseLogger;
@@ -30,18 +34,24 @@ public class DMHandler {
 
         String fromField = currentUser + "@" + localIp;
 
-        String message = String.join("\n",
-                "TYPE:DM",
-                "FROM:" + fromField,
-                "TO:" + recipientId,
-                "CONTENT:" + content,
-                "TIMESTAMP:" + timestamp,
-                "MESSAGE_ID:" + messageId,
-                "TOKEN:" + token);
-
-        socketManager.sendMessage(message, recipientAddress, recipientPort);
-        VerboseLogger
-                .log("DM sent to " + recipientId + " at " + recipientAddress.getHostAddress() + ":" + recipientPort);
+        MessageWriter message = MessageTemplate.blankMessage(PeerCapabilities.wireFormatFor(recipientAddress))
+                .put(LsnpField.TYPE, "DM")
+                .put(LsnpField.FROM, fromField)
+                .put(LsnpField.TO, recipientId)
+                .putCompressible(LsnpField.CONTENT, content, PeerCapabilities.deflateFor(recipientAddress))
+                .put(LsnpField.TIMESTAMP, timestamp)
+                .put(LsnpField.MESSAGE_ID, messageId)
+                .put(LsnpField.TOKEN, token);
+
+        socketManager.sendAsync(message.finish(), recipientAddress, recipientPort).whenComplete((ok, e) -> {
+            message.release();
+            if (e != null) {
+                System.err.println("Could not send DM to " + recipientId + ": " + e.getMessage());
+            } else {
+                VerboseLogger.log("DM sent to {} at {}:{}", recipientId, recipientAddress.getHostAddress(),
+                        recipientPort);
+            }
+        });
     }
 
     public void handle(Map<String, String> message) {
@@ -56,7 +66,7 @@ public class DMHandler {
         if (toUser.equals(currentUser)) {
             String senderUser = (from != null && from.contains("@")) ? from.split("@")[0] : from;
             TerminalDisplay.displayDM(senderUser, content);
-            VerboseLogger.log("DM received from " + from);
+            VerboseLogger.log("DM received from {}", from);
 
             String messageId = message.get("MESSAGE_ID");
             if (messageId != null && from.contains("@")) {
@@ -66,22 +76,27 @@ public class DMHandler {
                     InetAddress senderAddress = InetAddress.getByName(senderIp);
                     sendAck(messageId, senderAddress, 50999); // Replace with actual sender port if needed
                 } catch (IOException e) {
-                    VerboseLogger.log("Failed to send ACK to " + senderIp);
+                    VerboseLogger.log("Failed to send ACK to {}", senderIp);
                 }
             }
         } else {
-            VerboseLogger.drop("DM intended for " + to + " received by " + currentUser);
+            VerboseLogger.drop("DM intended for {} received by {}", to, currentUser);
         }
     }
 
-    private void sendAck(String messageId, InetAddress recipientAddress, int recipientPort) throws IOException {
+    private void sendAck(String messageId, InetAddress recipientAddress, int recipientPort) {
         String ack = String.join("\n",
                 "TYPE:ACK",
                 "MESSAGE_ID:" + messageId,
                 "STATUS:RECEIVED");
 
-        socketManager.sendMessage(ack, recipientAddress, recipientPort);
-        VerboseLogger.log("Sent ACK for message ID: " + messageId + " to " + recipientAddress.getHostAddress());
+        socketManager.sendAsync(ack, recipientAddress, recipientPort).whenComplete((ok, e) -> {
+            if (e != null) {
+                VerboseLogger.log("Failed to send ACK to {}: {}", recipientAddress.getHostAddress(), e.getMessage());
+            } else {
+                VerboseLogger.ack("Sent ACK for message ID: {} to {}", messageId, recipientAddress.getHostAddress());
+            }
+        });
     }
 
     public void handleAck(Map<String, String> message) {
@@ -89,9 +104,9 @@ public class DMHandler {
         String status = message.get("STATUS");
 
         if ("RECEIVED".equalsIgnoreCase(status)) {
-            VerboseLogger.log("ACK received for DM with ID: " + messageId);
+            VerboseLogger.ack("ACK received for DM with ID: {}", messageId);
         } else {
-            VerboseLogger.log("ACK received with status '" + status + "' for DM with ID: " + messageId);
+            VerboseLogger.ack("ACK received with status '{}' for DM with ID: {}", status, messageId);
         }
     }
 }
@@ -2,10 +2,22 @@ package main.handlers;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
 import main.UDPSocketManager;
 import main.data.FileChunkStore;
 import main.utils.*;
@@ -14,36 +26,182 @@ public class FileHandler {
     private final UDPSocketManager socketManager;
     private final String currentUserId;
     private final FileChunkStore chunkStore = new FileChunkStore();
+    // Encoded chunks shared by every send of the same file
+    private final ChunkCache chunkCache = new ChunkCache();
     private final Scanner scanner = new Scanner(System.in);
-    private final Map<String, ChunkMetadata> sentChunks = new ConcurrentHashMap<>();
-    private static final int RESEND_TIMEOUT_MS = 3000;
-    private static final int MAX_RETRIES = 5;
+    private final Map<String, OutgoingTransfer> transfers = new ConcurrentHashMap<>();
+    private final Map<String, OutgoingTransfer> transfersByTag = new ConcurrentHashMap<>();
+    private final Map<String, PendingAck> pendingAcks = new ConcurrentHashMap<>();
+    private final DelayQueue<ResendDeadline> resendDeadlines = new DelayQueue<>();
+    private final TransferScheduler scheduler;
+    // Downloads that also pull chunks from other receivers, by FILEID
+    private final Map<String, SwarmDownload> swarms = new ConcurrentHashMap<>();
+    private final Map<String, PendingDelta> deltas = new ConcurrentHashMap<>();
+    // Scans of earlier copies run here, never on ackTimer, whose ACK flushes and swarm ticks must not
+    // wait, nor on the file's lane, where its chunks would queue behind the scan
+    private final ExecutorService deltaExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<String> scanning = ConcurrentHashMap.newKeySet();
+    // Receivers of each file, by FILEHASH and chunk size, then receiver, newest last. They are listed
+    // as PEERS in later offers of the file, and chunks they ACKed are left to be pulled. A receiver
+    // is dropped when its transfer is abandoned, and a while after it completes.
+    private final Map<String, Map<String, SwarmDownload.Member>> swarmMembers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ackTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "lsnp-file-ack");
+        t.setDaemon(true);
+        return t;
+    });
+    // Resend timeouts follow each peer's measured RTT and double with every retry
+    private static final int MAX_RETRIES = 8;
+    // Rebuild cached chunk headers well before their one-hour TOKEN expires
+    private static final long TEMPLATE_REFRESH_MS = 30 * 60 * 1000L;
+    // Chunks presumed lost from later ACKs that one ACK may retransmit
+    private static final int MAX_FAST_RETRANSMITS = 4;
+    // A FILE_ACK goes out after this many chunks, or this long after the first unACKed one
+    private static final int ACK_EVERY_CHUNKS = Integer.getInteger("lsnp.ackEvery", 8);
+    private static final long ACK_DELAY_MS = Long.getLong("lsnp.ackDelay", 5L);
+    private static final int MAX_SACK_RANGES = 32;
+    // Chunks past the last HAVE range are simply sent again
+    private static final int MAX_HAVE_RANGES = 64;
+    // Chunk size for peers that don't answer MTU probes
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+    // How often a swarm download sends its next FILE_REQUESTs, and the most chunks one may ask for
+    private static final long SWARM_TICK_MS = 50;
+    private static final int MAX_SERVE_CHUNKS = 512;
+    private static final int MAX_SWARM_MEMBERS = 16;
+    private static final long SWARM_MEMBER_TTL_MS = 10 * 60 * 1000L;
+    // How long a receiver waits for FILE_SIGNATUREs before using the ones it has
+    private static final long DELTA_WAIT_MS = 1000;
+
+    // A download waiting for the sender's chunk signatures to rebuild it from an earlier copy
+    private record PendingDelta(DeltaSignatures signatures, String fileName, String from, String senderIP,
+            int senderPort) {
+    }
+
+    // Chunks received for one file since the last FILE_ACK was sent for it
+    private static final class PendingAck {
+        final String fileId;
+        final String senderUserId;
+        final InetAddress senderAddress;
+        final int senderPort;
+        int unacked = 0;
+        boolean flushScheduled = false;
+
+        PendingAck(String fileId, String senderUserId, InetAddress senderAddress, int senderPort) {
+            this.fileId = fileId;
+            this.senderUserId = senderUserId;
+            this.senderAddress = senderAddress;
+            this.senderPort = senderPort;
+        }
+    }
+
+    // When a chunk is due for a resend; stale once the chunk is ACKed or sent again under a newer sequence
+    private static final class ResendDeadline implements Delayed {
+        final ChunkMetadata meta;
+        final long sendSeq;
+        final long dueNanos;
+
+        ResendDeadline(ChunkMetadata meta, long sendSeq, long dueNanos) {
+            this.meta = meta;
+            this.sendSeq = sendSeq;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((ResendDeadline) other).dueNanos);
+        }
+    }
 
     public FileHandler(UDPSocketManager socketManager, String currentUserId) {
         this.socketManager = socketManager;
         this.currentUserId = currentUserId;
+        this.scheduler = new TransferScheduler(new TransferScheduler.ChunkSender() {
+            @Override
+            public CompletableFuture<Void> send(OutgoingTransfer transfer, int chunkIndex, long sendSeq) {
+                return sendFileChunk(transfer, chunkIndex, sendSeq);
+            }
+
+            @Override
+            public CompletableFuture<Void> resend(ChunkMetadata meta) {
+                return resendChunk(meta);
+            }
+
+            @Override
+            public void finished(OutgoingTransfer transfer) {
+                endTransfer(transfer);
+            }
+        });
         startResendMonitor();
     }
 
-    public void handle(Map<String, String> msg, String senderIP) {
+    /** Progress of every outgoing transfer, queued or running, followed by every incoming one. */
+    public List<TransferProgress> transferProgress() {
+        List<TransferProgress> progress = new ArrayList<>(scheduler.progress());
+        progress.addAll(chunkStore.progress());
+        return progress;
+    }
+
+    public void handle(LsnpMessage msg, String senderIP, int senderPort) {
         String type = msg.get("TYPE");
         if (type == null)
             return;
 
         switch (type) {
-            case "FILE_OFFER" -> handleFileOffer(msg, senderIP);
-            case "FILE_CHUNK" -> handleFileChunk(msg, senderIP);
+            case "FILE_OFFER" -> handleFileOffer(msg, senderIP, senderPort);
+            case "FILE_CHUNK" -> handleFileChunk(msg, senderIP, senderPort);
             case "FILE_RECEIVED" -> handleFileReceived(msg);
-            default -> VerboseLogger.log("FileHandler: Unknown message type " + type);
+            case "FILE_ACK" -> handleFileAck(msg);
+            case "FILE_RESUME" -> handleFileResume(msg);
+            case "FILE_REPAIR" -> handleFileRepair(msg, senderIP, senderPort);
+            case "FILE_REQUEST" -> handleFileRequest(msg, senderIP, senderPort);
+            case "FILE_HAVE" -> handleFileHave(msg, senderIP, senderPort);
+            case "FILE_BASIS" -> handleFileBasis(msg);
+            case "FILE_SIGNATURE" -> handleFileSignature(msg);
+            case "MTU_PROBE" -> handleMtuProbe(msg, senderIP, senderPort);
+            default -> VerboseLogger.log("FileHandler: Unknown message type {}", type);
         }
     }
 
-    private void handleFileOffer(Map<String, String> msg, String senderIP) {
+    // An offer of a file whose partial download from the same sender is on disk was accepted
+    // before, so it is resumed without asking again
+    private void handleFileOffer(LsnpMessage msg, String senderIP, int senderPort) {
         String from = msg.get("FROM");
         String filename = msg.get("FILENAME");
         String fileId = msg.get("FILEID");
+        String fileHash = msg.get("FILEHASH");
+        String chunkSize = msg.get("CHUNK_SIZE");
+        long fileSize;
+        try {
+            fileSize = Long.parseLong(msg.get("FILESIZE"));
+        } catch (NumberFormatException e) {
+            VerboseLogger.drop("FILE_OFFER for {} with bad FILESIZE {}", filename, msg.get("FILESIZE"));
+            return;
+        }
 
-        TerminalDisplay.displayFileOffer(from, filename);
+        if (chunkStore.activeCount() >= TransferScheduler.MAX_TRANSFERS) {
+            System.out.println("[INFO] Declined " + filename + " from " + from + ": already receiving "
+                    + TransferScheduler.MAX_TRANSFERS + " files");
+            return;
+        }
+        if (chunkSize != null && chunkStore.canResume(fileHash, fileSize, from)) {
+            if (openFile(fileId, filename, fileSize, chunkSize, fileHash, from, senderIP, senderPort)) {
+                startSwarm(fileId, fileSize, chunkSize, fileHash, msg.get("PEERS"), from, senderIP, senderPort);
+            }
+            return;
+        }
+
+        if (BundleArchive.FILETYPE.equals(msg.get("FILETYPE")) && filename != null
+                && filename.endsWith(BundleArchive.SUFFIX)) {
+            TerminalDisplay.displayBundleOffer(from,
+                    filename.substring(0, filename.length() - BundleArchive.SUFFIX.length()), msg.get("FILECOUNT"));
+        } else {
+            TerminalDisplay.displayFileOffer(from, filename);
+        }
 
         String response = "";
         do {
@@ -54,51 +212,743 @@ public class FileHandler {
         } while (!response.equals("y") && !response.equals("n"));
 
         if (response.equals("y")) {
-            VerboseLogger.log("File offer accepted for fileId " + fileId);
-            // Proceed with accepting the file offer
+            if (openFile(fileId, filename, fileSize, chunkSize, fileHash, from, senderIP, senderPort)) {
+                startSwarm(fileId, fileSize, chunkSize, fileHash, msg.get("PEERS"), from, senderIP, senderPort);
+            }
+            VerboseLogger.log("File offer accepted for fileId {}", fileId);
         } else {
             System.out.println("File offer declined.");
-            VerboseLogger.log("File offer from " + from + " for fileId " + fileId + " declined.");
-            // Handle decline logic (ignore future chunks, etc)
+            VerboseLogger.log("File offer from {} for fileId {} declined.", from, fileId);
+        }
+    }
+
+    private boolean openFile(String fileId, String filename, long fileSize, String chunkSize, String fileHash,
+            String from, String senderIP, int senderPort) {
+        try {
+            int held = chunkStore.open(fileId, filename, fileSize, chunkSize != null ? Integer.parseInt(chunkSize) : 0,
+                    fileHash, from);
+            if (held > 0) {
+                System.out.println("[INFO] " + held + " chunks of " + filename + " are already here; receiving the rest"
+                        + " from " + from);
+                sendFileResume(fileId, from, InetAddress.getByName(senderIP), senderPort);
+                // Nothing left to receive if the whole file was already here
+                if (chunkStore.isComplete(fileId)) {
+                    finishFile(fileId, from, senderIP, senderPort);
+                    return true;
+                }
+            }
+            startDelta(fileId, filename, fileSize, chunkSize, from, senderIP, senderPort);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Cannot receive " + filename + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // A new version of a file received before is rebuilt from the old copy where it is unchanged:
+    // FILE_BASIS asks the sender for its chunk signatures, and chunks found in the old copy are
+    // ACKed so the sender skips them. Only senders that take FILE_ACK SACKs qualify.
+    private void startDelta(String fileId, String filename, long fileSize, String chunkSize, String from,
+            String senderIP, int senderPort) {
+        String basis = chunkStore.basisName(fileId);
+        if (!DeltaSignatures.isEnabled() || chunkSize == null || fileSize == 0 || basis == null) {
             return;
         }
+        InetAddress senderAddress;
+        int size;
+        try {
+            senderAddress = InetAddress.getByName(senderIP);
+            size = Integer.parseInt(chunkSize);
+        } catch (IOException | NumberFormatException e) {
+            VerboseLogger.drop("No delta for fileId {}: {}", fileId, e.getMessage());
+            return;
+        }
+        if (size <= 0 || !PeerCapabilities.supports(senderAddress, DeltaSignatures.CAPABILITY)
+                || !PeerCapabilities.sackFor(senderAddress)) {
+            return;
+        }
+        deltas.put(fileId, new PendingDelta(new DeltaSignatures(size, (int) ((fileSize + size - 1) / size)), filename,
+                from, senderIP, senderPort));
+        MessageWriter writer = MessageTemplate.blankMessage(PeerCapabilities.wireFormatFor(senderAddress))
+                .put(LsnpField.TYPE, "FILE_BASIS")
+                .put(LsnpField.FROM, currentUserId)
+                .put(LsnpField.TO, from)
+                .put(LsnpField.FILEID, fileId)
+                .put(LsnpField.TOKEN, TokenValidator.generate(currentUserId, 3600_000L, "file"));
+        send(writer, senderAddress, senderPort);
+        // A lost FILE_BASIS or FILE_SIGNATURE only means those chunks are sent after all
+        ackTimer.schedule(() -> deltaExecutor.execute(() -> applyDelta(fileId)), DELTA_WAIT_MS,
+                TimeUnit.MILLISECONDS);
+        VerboseLogger.log("Asked {} for signatures of fileId {} to update {}", from, fileId, basis);
     }
 
-    private void handleFileChunk(Map<String, String> msg, String senderIP) {
+    // FILE_SIGNATURE: weak and strong hashes of chunks [CHUNK_INDEX, CHUNK_INDEX + BLOCK) as DATA
+    private void handleFileSignature(LsnpMessage msg) {
         String fileId = msg.get("FILEID");
-        int chunkIndex = Integer.parseInt(msg.get("CHUNK_INDEX"));
-        int totalChunks = Integer.parseInt(msg.get("TOTAL_CHUNKS"));
-        String base64Data = msg.get("DATA");
+        PendingDelta delta = deltas.get(fileId);
+        ByteBuffer data = msg.getByteBuffer(LsnpField.DATA);
+        if (delta == null || data == null) {
+            VerboseLogger.drop("FILE_SIGNATURE for fileId {} not waiting for one", fileId);
+            return;
+        }
+        try {
+            delta.signatures().add(Integer.parseInt(msg.get("CHUNK_INDEX")), Integer.parseInt(msg.get("BLOCK")), data);
+        } catch (IllegalArgumentException e) {
+            VerboseLogger.drop("Bad FILE_SIGNATURE for fileId {}: {}", fileId, e.getMessage());
+            return;
+        }
+        if (delta.signatures().isComplete()) {
+            deltaExecutor.execute(() -> applyDelta(fileId));
+        }
+    }
 
-        chunkStore.addChunk(fileId, chunkIndex, totalChunks, base64Data);
+    private void applyDelta(String fileId) {
+        PendingDelta delta = deltas.remove(fileId);
+        if (delta == null) {
+            return;
+        }
+        // Chunks arriving meanwhile are stored but not ACKed, so the sender's window stalls instead
+        // of sending what the scan is about to find; one ACK afterwards covers both
+        scanning.add(fileId);
+        int copied = 0;
+        try {
+            copied = chunkStore.copyFromBasis(fileId, delta.signatures());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not reuse the earlier copy of " + delta.fileName() + ": " + e.getMessage());
+        } finally {
+            scanning.remove(fileId);
+        }
+        try {
+            if (copied > 0) {
+                System.out.println("[INFO] " + copied + " of " + delta.signatures().totalChunks + " chunks of "
+                        + delta.fileName() + " are unchanged from " + chunkStore.basisName(fileId)
+                        + "; receiving the rest from " + delta.from());
+            }
+            boolean complete = chunkStore.isComplete(fileId);
+            noteChunkForAck(fileId, delta.from(), InetAddress.getByName(delta.senderIP()), delta.senderPort(), true);
+            if (complete) {
+                finishFile(fileId, delta.from(), delta.senderIP(), delta.senderPort());
+            }
+        } catch (IOException e) {
+            System.err.println("Could not acknowledge the reused chunks of " + delta.fileName() + ": " + e.getMessage());
+        }
+    }
+
+    // FILE_BASIS: the receiver holds an older version and wants every chunk's signature, packed
+    // into FILE_SIGNATUREs no bigger than a chunk
+    private void handleFileBasis(LsnpMessage msg) {
+        OutgoingTransfer transfer = transfers.get(msg.get("FILEID"));
+        if (transfer == null) {
+            VerboseLogger.drop("FILE_BASIS for unknown fileId {}", msg.get("FILEID"));
+            return;
+        }
+        FileChunkSource source = transfer.source;
+        int perMessage = Math.max(1, source.chunkSize() / DeltaSignatures.BYTES);
+        MessageDigest digest = DeltaSignatures.newDigest();
+        WireFormat format = PeerCapabilities.wireFormatFor(transfer.recipientAddress);
+        try {
+            for (int first = 0; first < source.totalChunks(); first += perMessage) {
+                int count = Math.min(perMessage, source.totalChunks() - first);
+                ByteBuffer signatures = ByteBuffer.allocate(count * DeltaSignatures.BYTES);
+                for (int i = first; i < first + count; i++) {
+                    DeltaSignatures.sign(digest, source.chunk(i), signatures);
+                }
+                MessageWriter writer = MessageTemplate.blankMessage(format)
+                        .put(LsnpField.TYPE, "FILE_SIGNATURE")
+                        .put(LsnpField.FROM, currentUserId)
+                        .put(LsnpField.TO, transfer.toUserId)
+                        .put(LsnpField.FILEID, transfer.fileId)
+                        .put(LsnpField.CHUNK_INDEX, first)
+                        .put(LsnpField.BLOCK, count)
+                        .putBase64(LsnpField.DATA, signatures.flip())
+                        .put(LsnpField.TOKEN, TokenValidator.generate(currentUserId, 3600_000L, "file"));
+                send(writer, transfer.recipientAddress, transfer.recipientPort);
+            }
+            VerboseLogger.log("Sent signatures of fileId {} to {}", transfer.fileId, transfer.toUserId);
+        } catch (UncheckedIOException e) {
+            VerboseLogger.log("Stopped sending signatures of fileId {}: {}", transfer.fileId, e.getMessage());
+        }
+    }
+
+    // An offer listing PEERS, other receivers of the same file, also pulls chunks from them. Only
+    // senders that take FILE_ACK qualify, since that is how they learn which chunks to skip.
+    private void startSwarm(String fileId, long fileSize, String chunkSize, String fileHash, String peers,
+            String from, String senderIP, int senderPort) {
+        if (!SwarmDownload.isEnabled() || fileHash == null || chunkSize == null || peers == null || fileSize == 0) {
+            return;
+        }
+        try {
+            InetAddress senderAddress = InetAddress.getByName(senderIP);
+            int size = Integer.parseInt(chunkSize);
+            if (size <= 0 || !PeerCapabilities.sackFor(senderAddress)) {
+                return;
+            }
+            SwarmDownload swarm = new SwarmDownload(fileId, fileHash, size, (int) ((fileSize + size - 1) / size),
+                    new SwarmDownload.Peer(from, senderAddress, senderPort));
+            for (SwarmDownload.Peer peer : SwarmDownload.parsePeers(peers)) {
+                if (PeerCapabilities.supports(peer.address(), SwarmDownload.CAPABILITY)) {
+                    swarm.addPeer(peer);
+                }
+            }
+            if (swarm.peerCount() == 0) {
+                return;
+            }
+            swarms.put(fileId, swarm);
+            swarm.start(ackTimer, () -> swarmTick(swarm), SWARM_TICK_MS);
+            VerboseLogger.log("Pulling fileId {} from {} swarm peers as well", fileId, swarm.peerCount());
+        } catch (IOException | NumberFormatException e) {
+            VerboseLogger.drop("No swarm for fileId {}: {}", fileId, e.getMessage());
+        }
+    }
+
+    private void swarmTick(SwarmDownload swarm) {
+        BitSet missing = chunkStore.missing(swarm.fileId);
+        if (missing == null) {
+            swarms.remove(swarm.fileId, swarm);
+            swarm.stop();
+            return;
+        }
+        for (Map.Entry<SwarmDownload.Peer, BitSet> request : swarm.plan(missing, System.nanoTime()).entrySet()) {
+            sendFileRequest(swarm, request.getKey(), request.getValue());
+        }
+    }
+
+    private void sendFileRequest(SwarmDownload swarm, SwarmDownload.Peer peer, BitSet want) {
+        MessageWriter writer = MessageTemplate.blankMessage(PeerCapabilities.wireFormatFor(peer.address()))
+                .put(LsnpField.TYPE, "FILE_REQUEST")
+                .put(LsnpField.FROM, currentUserId)
+                .put(LsnpField.TO, peer.userId())
+                .put(LsnpField.FILEID, swarm.fileId)
+                .put(LsnpField.FILEHASH, swarm.fileHash)
+                .put(LsnpField.CHUNK_SIZE, swarm.chunkSize)
+                .put(LsnpField.TOTAL_CHUNKS, swarm.totalChunks)
+                .put(LsnpField.WANT, formatRanges(want))
+                .put(LsnpField.TOKEN, TokenValidator.generate(currentUserId, 3600_000L, "file"));
+        send(writer, peer.address(), peer.port());
+        VerboseLogger.log("Sent FILE_REQUEST for {} chunks of fileId {} to {}", want.cardinality(), swarm.fileId,
+                peer.userId());
+    }
+
+    // Another receiver of a file we hold, whole or in part: the chunks it wants that we have are
+    // sent under its FILEID, and FILE_HAVE tells it what else it can ask us for
+    private void handleFileRequest(LsnpMessage msg, String senderIP, int senderPort) {
+        String fileHash = msg.get("FILEHASH");
+        String fileId = msg.get("FILEID");
+        try {
+            int chunkSize = Integer.parseInt(msg.get("CHUNK_SIZE"));
+            int totalChunks = Integer.parseInt(msg.get("TOTAL_CHUNKS"));
+            String held = chunkStore.heldRanges(fileHash, chunkSize, MAX_HAVE_RANGES);
+            if (held == null) {
+                VerboseLogger.drop("FILE_REQUEST from {} for a file not held here", msg.get("FROM"));
+                return;
+            }
+            InetAddress requester = InetAddress.getByName(senderIP);
+            SwarmDownload.Peer peer = new SwarmDownload.Peer(msg.get("FROM"), requester, senderPort);
+            // It may hold chunks we are missing too
+            for (SwarmDownload swarm : swarms.values()) {
+                if (swarm.matches(fileHash, chunkSize)
+                        && PeerCapabilities.supports(requester, SwarmDownload.CAPABILITY)) {
+                    swarm.addPeer(peer);
+                }
+            }
+
+            MessageWriter have = MessageTemplate.blankMessage(PeerCapabilities.wireFormatFor(requester))
+                    .put(LsnpField.TYPE, "FILE_HAVE")
+                    .put(LsnpField.FROM, currentUserId)
+                    .put(LsnpField.TO, peer.userId())
+                    .put(LsnpField.FILEHASH, fileHash)
+                    .put(LsnpField.CHUNK_SIZE, chunkSize)
+                    .put(LsnpField.HAVE, held)
+                    .put(LsnpField.TOKEN, TokenValidator.generate(currentUserId, 3600_000L, "file"));
+            send(have, requester, senderPort);
+
+            BitSet want = parseRanges(msg.get("WANT"), totalChunks);
+            for (int i = want.nextSetBit(0), n = 0; i >= 0; i = want.nextSetBit(i + 1)) {
+                if (++n > MAX_SERVE_CHUNKS) {
+                    want.clear(i, totalChunks);
+                    break;
+                }
+            }
+            int served = chunkStore.readHeld(fileHash, chunkSize, want,
+                    (chunkIndex, total, data) -> sendPeerChunk(peer, fileId, chunkIndex, total, data));
+            VerboseLogger.log("Served {} chunks of fileId {} to {}", served, fileId, peer.userId());
+        } catch (IOException e) {
+            System.err.println("Failed to serve chunks of " + fileId + ": " + e.getMessage());
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            VerboseLogger.drop("Bad FILE_REQUEST for fileId {}: {}", fileId, e.getMessage());
+        }
+    }
+
+    // No MESSAGE_ID: the requester ACKs swarm chunks to the file's sender, not to us
+    private void sendPeerChunk(SwarmDownload.Peer peer, String fileId, int chunkIndex, int totalChunks,
+            ByteBuffer data) {
+        MessageWriter writer = MessageTemplate.blankMessage(PeerCapabilities.wireFormatFor(peer.address()))
+                .put(LsnpField.TYPE, "FILE_CHUNK")
+                .put(LsnpField.FROM, currentUserId)
+                .put(LsnpField.TO, peer.userId())
+                .put(LsnpField.FILEID, fileId)
+                .put(LsnpField.CHUNK_INDEX, chunkIndex)
+                .put(LsnpField.TOTAL_CHUNKS, totalChunks)
+                .put(LsnpField.CHUNK_SIZE, data.remaining());
+        if (PeerCapabilities.crcFor(peer.address())) {
+            writer.put(LsnpField.CRC, crc32c(data));
+        }
+        writer.putBase64(LsnpField.DATA, data)
+                .put(LsnpField.TOKEN, TokenValidator.generate(currentUserId, 3600_000L, "file"));
+        send(writer, peer.address(), peer.port());
+    }
+
+    private void handleFileHave(LsnpMessage msg, String senderIP, int senderPort) {
+        String fileHash = msg.get("FILEHASH");
+        try {
+            int chunkSize = Integer.parseInt(msg.get("CHUNK_SIZE"));
+            for (SwarmDownload swarm : swarms.values()) {
+                if (swarm.matches(fileHash, chunkSize)) {
+                    swarm.updateHave(senderIP + ":" + senderPort, parseRanges(msg.get("HAVE"), swarm.totalChunks));
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            VerboseLogger.drop("Malformed FILE_HAVE from {}: {}", msg.get("FROM"), e.getMessage());
+        }
+    }
+
+    // FILE_RESUME: the chunks of this file already on disk, so the sender skips them and resends
+    // any it counted as delivered before the receiver restarted
+    private void sendFileResume(String fileId, String senderUserId, InetAddress senderAddress, int senderPort) {
+        String have = chunkStore.haveRanges(fileId, MAX_HAVE_RANGES);
+        MessageWriter writer = MessageTemplate.blankMessage(PeerCapabilities.wireFormatFor(senderAddress))
+                .put(LsnpField.TYPE, "FILE_RESUME")
+                .put(LsnpField.FROM, currentUserId)
+                .put(LsnpField.TO, senderUserId)
+                .put(LsnpField.FILEID, fileId)
+                .put(LsnpField.HAVE, have)
+                .put(LsnpField.TOKEN, TokenValidator.generate(currentUserId, 3600_000L, "file"));
+        send(writer, senderAddress, senderPort);
+        VerboseLogger.log("Sent FILE_RESUME for fileId {}: have [{}]", fileId, have);
+    }
+
+    // Chunks go straight to their offset in the part file; only accepted files are written or ACKed.
+    private void handleFileChunk(LsnpMessage msg, String senderIP, int senderPort) {
+        String fileId = msg.get("FILEID");
+        if (!chunkStore.isKnown(fileId)) {
+            VerboseLogger.drop("FILE_CHUNK for unknown or declined fileId {}", fileId);
+            return;
+        }
+        int chunkIndex;
+        int totalChunks;
+        try {
+            chunkIndex = Integer.parseInt(msg.get("CHUNK_INDEX"));
+            totalChunks = Integer.parseInt(msg.get("TOTAL_CHUNKS"));
+        } catch (NumberFormatException e) {
+            VerboseLogger.drop("Bad FILE_CHUNK for fileId {}: {}", fileId, e.getMessage());
+            return;
+        }
+        // Raw bytes in LSNP-B, base64-decoded from the datagram buffer in text
+        ByteBuffer data = msg.getByteBuffer(LsnpField.DATA);
+
+        // Chunks pulled from a swarm peer are ACKed to the file's sender, which then skips them
+        SwarmDownload swarm = swarms.get(fileId);
+        boolean fromPeer = swarm != null && !swarm.isOrigin(senderIP, senderPort);
+        String from = fromPeer ? swarm.origin.userId() : msg.get("FROM");
+        String fromIP = fromPeer ? swarm.origin.address().getHostAddress() : senderIP;
+        int fromPort = fromPeer ? swarm.origin.port() : senderPort;
+        InetAddress senderAddress;
+        try {
+            senderAddress = fromPeer ? swarm.origin.address() : InetAddress.getByName(senderIP);
+        } catch (IOException e) {
+            return;
+        }
+        boolean sack = PeerCapabilities.sackFor(senderAddress);
+        try {
+            // First chunk since this receiver restarted in the middle of the transfer
+            if (chunkStore.resumeDormant(fileId)) {
+                System.out.println("[INFO] Resuming fileId " + fileId + " from " + from);
+                sendFileResume(fileId, from, senderAddress, fromPort);
+            }
+            String crc = msg.get("CRC");
+            if (data != null && crc != null && Long.parseLong(crc) != crc32c(data)) {
+                VerboseLogger.drop("FILE_CHUNK {} for fileId {} failed its CRC32C", chunkIndex, fileId);
+                // A corrupt swarm chunk is simply asked for again
+                if (sack && !fromPeer) {
+                    nackChunk(fileId, from, senderAddress, fromPort, chunkIndex);
+                }
+                return;
+            }
+            FileChunkStore.Result result = data == null
+                    ? FileChunkStore.Result.UNKNOWN
+                    : chunkStore.writeChunk(fileId, chunkIndex, totalChunks, data);
+            if (result == FileChunkStore.Result.UNKNOWN) {
+                return;
+            }
+            if (result == FileChunkStore.Result.STORED) {
+                chunkStore.repairAfter(fileId, chunkIndex);
+                if (fromPeer) {
+                    swarm.pulled();
+                }
+            }
+            if (swarm != null && !fromPeer) {
+                swarm.fromOrigin(chunkIndex);
+            }
+            boolean complete = chunkStore.isComplete(fileId);
+            if (sack) {
+                noteChunkForAck(fileId, from, senderAddress, fromPort,
+                        complete || result == FileChunkStore.Result.DUPLICATE);
+            }
+            if (complete) {
+                finishFile(fileId, from, fromIP, fromPort);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write chunk " + chunkIndex + " of " + fileId + ": " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            VerboseLogger.drop("Bad FILE_CHUNK {} for fileId {}: {}", chunkIndex, fileId, e.getMessage());
+            return;
+        }
+
+        // Senders without SACK support still expect one ACK per chunk
         String messageId = msg.get("MESSAGE_ID");
-        if (chunkStore.isComplete(fileId)) {
-            byte[] fullFile = chunkStore.reassemble(fileId);
-            if (fullFile != null) {
-                System.out.println("[INFO] File transfer of " + fileId + " is complete.");
-                int toPort = socketManager.getLastSenderPort();
-                sendFileReceived(msg.get("TO"), msg.get("FROM"), fileId, toPort, senderIP);
-                chunkStore.removeFile(fileId);
+        if (!sack && messageId != null) {
+            sendAck(messageId, senderAddress, senderPort);
+        }
+    }
+
+    // XOR parity over a block of chunks; a lost chunk of it is rebuilt here instead of being resent
+    private void handleFileRepair(LsnpMessage msg, String senderIP, int senderPort) {
+        String fileId = msg.get("FILEID");
+        if (!chunkStore.isKnown(fileId)) {
+            VerboseLogger.drop("FILE_REPAIR for unknown or declined fileId {}", fileId);
+            return;
+        }
+        ByteBuffer parity = msg.getByteBuffer(LsnpField.DATA);
+        String crc = msg.get("CRC");
+        try {
+            int first = Integer.parseInt(msg.get("CHUNK_INDEX"));
+            if (parity == null || (crc != null && Long.parseLong(crc) != crc32c(parity))) {
+                VerboseLogger.drop("FILE_REPAIR {} for fileId {} is missing or failed its CRC32C", first, fileId);
+                return;
             }
+            if (chunkStore.addRepair(fileId, first, Integer.parseInt(msg.get("BLOCK")), parity) < 0) {
+                return;
+            }
+            InetAddress senderAddress = InetAddress.getByName(senderIP);
+            boolean complete = chunkStore.isComplete(fileId);
+            noteChunkForAck(fileId, msg.get("FROM"), senderAddress, senderPort, complete);
+            if (complete) {
+                finishFile(fileId, msg.get("FROM"), senderIP, senderPort);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to repair a chunk of " + fileId + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            VerboseLogger.drop("Bad FILE_REPAIR for fileId {}: {}", fileId, e.getMessage());
         }
-        if (messageId != null) {
-            try {
-                InetAddress senderAddress = InetAddress.getByName(senderIP);
-                sendAck(messageId, senderAddress, socketManager.getLastSenderPort());
-            } catch (Exception e) {
-                VerboseLogger.log("Failed to send ACK for chunk " + messageId + ": " + e.getMessage());
+    }
+
+    // FILE_RECEIVED reports COMPLETE only once the file's SHA-256 matched the offer
+    private void finishFile(String fileId, String senderUserId, String senderIP, int senderPort) {
+        String status = "COMPLETE";
+        try {
+            Path saved = chunkStore.finish(fileId);
+            if (saved == null) {
+                return;
+            }
+            SwarmDownload swarm = swarms.remove(fileId);
+            if (swarm != null) {
+                swarm.stop();
+            }
+            System.out.println("[INFO] File transfer of " + fileId + " is complete. Saved to " + saved
+                    + (swarm == null ? "" : " (" + swarm.pulledChunks() + " chunks from swarm peers)"));
+            if (BundleArchive.isBundle(saved)) {
+                unpackBundle(fileId, saved);
             }
+        } catch (IOException e) {
+            System.err.println("Received file " + fileId + " is corrupt and was discarded: " + e.getMessage());
+            status = "FAILED";
         }
+        pendingAcks.remove(fileId);
+        sendFileReceived(senderUserId, fileId, senderPort, senderIP, status);
     }
 
-    private void handleFileReceived(Map<String, String> msg) {
+    // A folder arrives as one bundle file, which is written out into a folder beside it and deleted.
+    // A bundle that cannot be unpacked is kept; the transfer itself still succeeded.
+    private void unpackBundle(String fileId, Path bundle) {
+        try {
+            Path folder = BundleArchive.unpackBeside(bundle);
+            // Gone from disk, so no longer offered to swarm peers or copied from
+            chunkStore.removeFile(fileId);
+            System.out.println("[INFO] Unpacked folder to " + folder);
+        } catch (IOException e) {
+            System.err.println("Could not unpack " + bundle + ": " + e.getMessage());
+        }
+    }
+
+    private static long crc32c(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    // While chunks are missing, and for duplicates, every chunk is ACKed at once so the sender
+    // hears about lost chunks and lost ACKs quickly; otherwise ACKs are batched.
+    private void noteChunkForAck(String fileId, String senderUserId, InetAddress senderAddress, int senderPort,
+            boolean urgent) {
+        PendingAck pending = pendingAcks.computeIfAbsent(fileId,
+                id -> new PendingAck(id, senderUserId, senderAddress, senderPort));
+        FileChunkStore.AckState state = chunkStore.ackState(fileId, MAX_SACK_RANGES);
+        if (state == null) {
+            return;
+        }
+        synchronized (pending) {
+            pending.unacked++;
+            if (scanning.contains(fileId)) {
+                return;
+            }
+            if (urgent || pending.unacked >= ACK_EVERY_CHUNKS || !state.sack().isEmpty()) {
+                pending.unacked = 0;
+                sendFileAck(pending, state, -1);
+            } else if (!pending.flushScheduled) {
+                pending.flushScheduled = true;
+                ackTimer.schedule(() -> flushAck(pending), ACK_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void flushAck(PendingAck pending) {
+        synchronized (pending) {
+            pending.flushScheduled = false;
+            if (pending.unacked == 0 || scanning.contains(pending.fileId)) {
+                return;
+            }
+            FileChunkStore.AckState state = chunkStore.ackState(pending.fileId, MAX_SACK_RANGES);
+            if (state != null) {
+                pending.unacked = 0;
+                sendFileAck(pending, state, -1);
+            }
+        }
+    }
+
+    // A chunk that failed its CRC is NACKed at once so the sender resends it without waiting for a timeout
+    private void nackChunk(String fileId, String senderUserId, InetAddress senderAddress, int senderPort,
+            int chunkIndex) {
+        PendingAck pending = pendingAcks.computeIfAbsent(fileId,
+                id -> new PendingAck(id, senderUserId, senderAddress, senderPort));
+        FileChunkStore.AckState state = chunkStore.ackState(fileId, MAX_SACK_RANGES);
+        if (state == null) {
+            return;
+        }
+        synchronized (pending) {
+            pending.unacked = 0;
+            sendFileAck(pending, state, chunkIndex);
+        }
+    }
+
+    // A nack of -1 means no chunk is NACKed
+    private void sendFileAck(PendingAck pending, FileChunkStore.AckState state, int nack) {
+        MessageWriter writer = MessageTemplate.blankMessage(PeerCapabilities.wireFormatFor(pending.senderAddress))
+                .put(LsnpField.TYPE, "FILE_ACK")
+                .put(LsnpField.FROM, currentUserId)
+                .put(LsnpField.TO, pending.senderUserId)
+                .put(LsnpField.FILEID, pending.fileId)
+                .put(LsnpField.CUMULATIVE, state.cumulative());
+        if (!state.sack().isEmpty()) {
+            writer.put(LsnpField.SACK, state.sack());
+        }
+        if (nack >= 0) {
+            writer.put(LsnpField.NACK, nack);
+        }
+        // Rebuilt chunks were still lost on the way, which the sender's FEC rate has to know
+        if (state.repaired() > 0) {
+            writer.put(LsnpField.REPAIRED, state.repaired());
+        }
+        writer.put(LsnpField.TOKEN, TokenValidator.generate(currentUserId, 3600_000L, "file"));
+        send(writer, pending.senderAddress, pending.senderPort);
+        VerboseLogger.ack("Sent FILE_ACK for fileId {}: cumulative {}, sack [{}]", pending.fileId, state.cumulative(),
+                state.sack());
+    }
+
+    // Probes arrive from the sender's probing socket, so the answer goes back to that port
+    private void handleMtuProbe(LsnpMessage msg, String senderIP, int senderPort) {
+        try {
+            String reply = "TYPE: MTU_PROBE_ACK\nFROM: " + currentUserId + "\nMESSAGE_ID: " + msg.get("MESSAGE_ID")
+                    + "\n\n";
+            socketManager.sendAsync(reply, InetAddress.getByName(senderIP), senderPort);
+        } catch (IOException e) {
+            VerboseLogger.log("Failed to answer MTU probe from {}: {}", senderIP, e.getMessage());
+        }
+    }
+
+    private void handleFileReceived(LsnpMessage msg) {
         String fileId = msg.get("FILEID");
         String status = msg.get("STATUS");
-        VerboseLogger.log("Received FILE_RECEIVED for fileId " + fileId + " with status: " + status);
+        VerboseLogger.log("Received FILE_RECEIVED for fileId {} with status: {}", fileId, status);
+        pendingAcks.remove(fileId);
+
+        // The receiver has the whole file, so anything still outstanding was delivered
+        OutgoingTransfer transfer = transfers.get(fileId);
+        if (transfer != null && "COMPLETE".equalsIgnoreCase(status)) {
+            acknowledgeThrough(transfer, transfer.source.totalChunks());
+        } else if ("FAILED".equalsIgnoreCase(status)) {
+            System.out.println("[INFO] " + msg.get("FROM") + " discarded fileId " + fileId
+                    + ": it did not match the offered SHA-256");
+        }
+    }
+
+    // FILE_ACK: every chunk below CUMULATIVE has arrived, plus the listed SACK ranges
+    private void handleFileAck(LsnpMessage msg) {
+        OutgoingTransfer transfer = transfers.get(msg.get("FILEID"));
+        if (transfer == null) {
+            VerboseLogger.drop("FILE_ACK for unknown fileId {}", msg.get("FILEID"));
+            return;
+        }
+        long now = System.nanoTime();
+        ChunkMetadata newest;
+        try {
+            newest = acknowledgeThrough(transfer, Integer.parseInt(msg.get("CUMULATIVE")));
+            BitSet sack = parseRanges(msg.get("SACK"), transfer.source.totalChunks());
+            for (int i = sack.nextSetBit(0); i >= 0; i = sack.nextSetBit(i + 1)) {
+                newest = newestSample(newest, acknowledge(transfer, i));
+            }
+            transfer.skipAhead(sack);
+            // Corrupted, not lost: resent at once without cutting the window
+            BitSet nack = parseRanges(msg.get("NACK"), transfer.source.totalChunks());
+            for (int i = nack.nextSetBit(0); i >= 0; i = nack.nextSetBit(i + 1)) {
+                ChunkMetadata corrupt = transfer.pendingChunk(i);
+                if (corrupt != null) {
+                    retransmit(corrupt, -1, false);
+                }
+            }
+            String repaired = msg.get("REPAIRED");
+            if (repaired != null) {
+                transfer.noteRepaired(Integer.parseInt(repaired));
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            VerboseLogger.drop("Malformed FILE_ACK for fileId {}: {}", transfer.fileId, e.getMessage());
+            return;
+        }
+        VerboseLogger.ack("FILE_ACK received: fileId={}, cumulative={}, sack=[{}]", transfer.fileId,
+                msg.get("CUMULATIVE"), msg.get("SACK"));
+        if (newest != null) {
+            sampleRtt(transfer, now - newest.lastSentNanos);
+        }
+        retransmitPassed(transfer);
+        scheduler.wakeup();
+    }
+
+    // Sent by a receiver that continued a partial download: what it lists has arrived, and
+    // anything else it must still get, even chunks it ACKed before it restarted
+    private void handleFileResume(LsnpMessage msg) {
+        OutgoingTransfer transfer = transfers.get(msg.get("FILEID"));
+        if (transfer == null) {
+            VerboseLogger.drop("FILE_RESUME for unknown fileId {}", msg.get("FILEID"));
+            return;
+        }
+        BitSet held;
+        try {
+            held = parseRanges(msg.get("HAVE"), transfer.source.totalChunks());
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            VerboseLogger.drop("Malformed FILE_RESUME for fileId {}: {}", transfer.fileId, e.getMessage());
+            return;
+        }
+        for (int i = held.nextSetBit(0); i >= 0; i = held.nextSetBit(i + 1)) {
+            acknowledge(transfer, i);
+        }
+        int reopened = transfer.resume(held);
+        scheduler.wakeup();
+        System.out.println("[INFO] " + transfer.toUserId + " is resuming " + transfer.fileName + ": "
+                + held.cardinality() + " chunks already received, " + reopened + " to send again");
+    }
+
+    // "a-b,c" chunk ranges as used by SACK and HAVE, limited to the file's chunks
+    private static BitSet parseRanges(String ranges, int totalChunks) {
+        BitSet chunks = new BitSet(totalChunks);
+        if (ranges == null || ranges.isBlank()) {
+            return chunks;
+        }
+        for (String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(range.substring(0, dash < 0 ? range.length() : dash).trim());
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1).trim());
+            if (first <= last && first < totalChunks) {
+                chunks.set(Math.max(0, first), Math.min(last, totalChunks - 1) + 1);
+            }
+        }
+        return chunks;
+    }
+
+    private static String formatRanges(BitSet chunks) {
+        StringJoiner ranges = new StringJoiner(",");
+        for (int first = chunks.nextSetBit(0); first >= 0; first = chunks.nextSetBit(first + 1)) {
+            int last = chunks.nextClearBit(first) - 1;
+            ranges.add(first == last ? String.valueOf(first) : first + "-" + last);
+            first = last;
+        }
+        return ranges.toString();
+    }
+
+    private ChunkMetadata acknowledgeThrough(OutgoingTransfer transfer, int cumulative) {
+        int from = transfer.advanceCumulative(cumulative);
+        ChunkMetadata newest = null;
+        for (int i = Math.max(0, from); from >= 0 && i < Math.min(cumulative, transfer.source.totalChunks()); i++) {
+            newest = newestSample(newest, acknowledge(transfer, i));
+        }
+        return newest;
+    }
+
+    // One RTT sample per ACK, from the most recently sent chunk it covers. Older chunks in a batched
+    // ACK also waited out the ACK delay, and retransmitted chunks are ambiguous (Karn's rule).
+    private static ChunkMetadata newestSample(ChunkMetadata best, ChunkMetadata acked) {
+        if (acked == null || acked.retryCount > 0) {
+            return best;
+        }
+        return best == null || acked.sendSeq > best.sendSeq ? acked : best;
+    }
+
+    private static void sampleRtt(OutgoingTransfer transfer, long rttNanos) {
+        transfer.rtt.sample(rttNanos);
+        transfer.window.onRttSample(rttNanos);
+    }
+
+    // Settles one chunk the first time it is reported as received; returns it, or null if it was already settled
+    private ChunkMetadata acknowledge(OutgoingTransfer transfer, int chunkIndex) {
+        ChunkMetadata meta = transfer.take(chunkIndex);
+        if (meta == null) {
+            // Pulled from a swarm peer instead
+            if (transfer.delegatedArrived(chunkIndex) && transfer.skipped(1)) {
+                finishTransfer(transfer);
+            }
+            return null;
+        }
+        synchronized (meta) {
+            meta.acknowledged = true;
+        }
+        transfer.window.onAck(meta.sendSeq, meta.chunkSize);
+        transfer.noteDelivered();
+        if (transfer.settled(meta)) {
+            finishTransfer(transfer);
+        }
+        return meta;
+    }
+
+    // Chunks sent well before ones that have been ACKed and still unACKed were most likely dropped
+    private void retransmitPassed(OutgoingTransfer transfer) {
+        for (int i = 0; i < MAX_FAST_RETRANSMITS; i++) {
+            ChunkMetadata lost = transfer.oldestPassed();
+            if (lost == null) {
+                break;
+            }
+            retransmit(lost, -1, true);
+        }
     }
 
     public void sendFileOffer(String toUserId, InetAddress toAddress, String filename, long filesize, String filetype,
             String fileId, String description, int toPort) {
+        sendFileOffer(toUserId, toAddress, filename, filesize, filetype, fileId, description, toPort, 0, null, null, 0);
+    }
+
+    // A chunkSize above zero is announced as CHUNK_SIZE so the receiver can place every chunk by
+    // index, and a fileHash lets it recognise a partial download of the same file
+    private void sendFileOffer(String toUserId, InetAddress toAddress, String filename, long filesize,
+            String filetype, String fileId, String description, int toPort, int chunkSize, String fileHash,
+            String peers, int fileCount) {
         try {
             StringBuilder sb = new StringBuilder();
             String messageId = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
@@ -111,48 +961,169 @@ public class FileHandler {
             sb.append("FILETYPE: ").append(filetype).append("\n");
             sb.append("FILEID: ").append(fileId).append("\n");
             sb.append("DESCRIPTION: ").append(description).append("\n");
+            if (chunkSize > 0) {
+                sb.append("CHUNK_SIZE: ").append(chunkSize).append("\n");
+            }
+            if (fileHash != null) {
+                sb.append("FILEHASH: ").append(fileHash).append("\n");
+            }
+            if (peers != null) {
+                sb.append("PEERS: ").append(peers).append("\n");
+            }
+            if (fileCount > 0) {
+                sb.append("FILECOUNT: ").append(fileCount).append("\n");
+            }
             sb.append("TIMESTAMP: ").append(System.currentTimeMillis() / 1000).append("\n");
             sb.append("TOKEN: ").append(currentUserId).append("|")
                     .append(System.currentTimeMillis() / 1000 + 3600).append("|file\n");
             sb.append("\n");
 
-            socketManager.sendMessage(sb.toString(), toAddress, toPort);
-            VerboseLogger.log("Sent FILE_OFFER to " + toUserId);
+            socketManager.sendAsync(sb.toString(), toAddress, toPort).whenComplete((ok, e) -> {
+                if (e != null) {
+                    VerboseLogger.log("Failed to send FILE_OFFER: {}", e.getMessage());
+                } else {
+                    VerboseLogger.log("Sent FILE_OFFER to {}", toUserId);
+                }
+            });
         } catch (Exception e) {
-            VerboseLogger.log("Failed to send FILE_OFFER: " + e.getMessage());
+            VerboseLogger.log("Failed to send FILE_OFFER: {}", e.getMessage());
         }
     }
 
-    public void sendFileChunk(String toUserId, InetAddress toAddress, String fileId, int chunkIndex, int totalChunks,
-            int chunkSize, String base64Data, int toPort) {
+    private CompletableFuture<Void> sendFileChunk(OutgoingTransfer transfer, int chunkIndex, long sendSeq) {
+        ChunkMetadata meta = new ChunkMetadata(transfer, chunkIndex, transfer.messageId(chunkIndex));
+        meta.sendSeq = sendSeq;
+        transfer.sent(meta, -1);
+        CompletableFuture<Void> sent = transmitChunk(meta).whenComplete((ok, e) -> {
+            if (e != null) {
+                VerboseLogger.log("Failed to send FILE_CHUNK: {}", e.getMessage());
+            } else {
+                VerboseLogger.log("Sent FILE_CHUNK {}/{} for fileId {}", chunkIndex, meta.totalChunks - 1,
+                        meta.fileId);
+            }
+        });
+        CompletableFuture<Void> repair = addToParity(transfer, chunkIndex);
+        return repair == null ? sent : CompletableFuture.allOf(sent, repair);
+    }
+
+    // Folds a first send into the transfer's parity block and sends the FILE_REPAIR once the block
+    // is full. Blocks shrink as the measured loss rate grows; parity is not resent or ACKed.
+    private CompletableFuture<Void> addToParity(OutgoingTransfer transfer, int chunkIndex) {
+        XorFec fec = transfer.fec;
+        if (fec == null) {
+            return null;
+        }
+        int totalChunks = transfer.source.totalChunks();
         try {
-            StringBuilder sb = new StringBuilder();
-            sb.append("TYPE: FILE_CHUNK\n");
-            sb.append("FROM: ").append(currentUserId).append("\n");
-            sb.append("TO: ").append(toUserId).append("\n");
-            sb.append("FILEID: ").append(fileId).append("\n");
-            sb.append("CHUNK_INDEX: ").append(chunkIndex).append("\n");
-            sb.append("TOTAL_CHUNKS: ").append(totalChunks).append("\n");
-            sb.append("CHUNK_SIZE: ").append(chunkSize).append("\n");
-            String messageId = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
-            ChunkMetadata meta = new ChunkMetadata(fileId, chunkIndex, messageId, base64Data, totalChunks, chunkSize,
-                    toAddress, toPort, toUserId);
-            sentChunks.put(messageId, meta);
-            sb.append("MESSAGE_ID: ").append(messageId).append("\n");
-            sb.append("TOKEN: ").append(currentUserId).append("|").append(System.currentTimeMillis() / 1000 + 3600)
-                    .append("|file\n");
-            sb.append("DATA: ").append(base64Data).append("\n");
-            sb.append("\n");
+            if (!fec.add(chunkIndex, transfer.source.chunk(chunkIndex), XorFec.blockSizeFor(transfer.lossRate()),
+                    chunkIndex == totalChunks - 1)) {
+                return null;
+            }
+        } catch (UncheckedIOException e) {
+            return null;
+        }
+        MessageWriter writer = MessageTemplate.blankMessage(PeerCapabilities.wireFormatFor(transfer.recipientAddress))
+                .put(LsnpField.TYPE, "FILE_REPAIR")
+                .put(LsnpField.FROM, currentUserId)
+                .put(LsnpField.TO, transfer.toUserId)
+                .put(LsnpField.FILEID, transfer.fileId)
+                .put(LsnpField.CHUNK_INDEX, fec.first())
+                .put(LsnpField.BLOCK, fec.count());
+        ByteBuffer parity = ByteBuffer.wrap(fec.parity());
+        if (PeerCapabilities.crcFor(transfer.recipientAddress)) {
+            writer.put(LsnpField.CRC, crc32c(parity));
+        }
+        writer.putBase64(LsnpField.DATA, parity)
+                .put(LsnpField.TOKEN, TokenValidator.generate(currentUserId, 3600_000L, "file"));
+        VerboseLogger.log("Sent FILE_REPAIR for chunks {}+{} of fileId {}", fec.first(), fec.count(), transfer.fileId);
+        fec.sent();
+        return send(writer, transfer.recipientAddress, transfer.recipientPort, true);
+    }
 
-            String msg = sb.toString();
-            socketManager.sendMessage(msg, toAddress, toPort);
-            VerboseLogger.log("Sent FILE_CHUNK " + chunkIndex + "/" + (totalChunks - 1) + " for fileId " + fileId);
-        } catch (Exception e) {
-            VerboseLogger.log("Failed to send FILE_CHUNK: " + e.getMessage());
+    // Queues the message and releases its buffer once sent. File messages are sized to fit one
+    // datagram, so one that does not is reported like a failed send.
+    private CompletableFuture<Void> send(MessageWriter writer, InetAddress address, int port) {
+        return send(writer, address, port, false);
+    }
+
+    // Chunks and parity a transfer's window lets out are not held to the flat per-peer rate
+    private CompletableFuture<Void> send(MessageWriter writer, InetAddress address, int port, boolean windowed) {
+        ByteBuffer message;
+        try {
+            message = writer.finish();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
         }
+        return (windowed ? socketManager.sendWindowed(message, address, port)
+                : socketManager.sendAsync(message, address, port)).whenComplete((ok, e) -> writer.release());
+    }
+
+    // TYPE, FROM, TO, FILEID, TOTAL_CHUNKS and TOKEN are the same for every chunk of a transfer,
+    // so they are encoded once per transfer instead of once per chunk.
+    private MessageTemplate chunkTemplate(String toUserId, String fileId, int totalChunks) {
+        return MessageTemplate.builder()
+                .field(LsnpField.TYPE, "FILE_CHUNK")
+                .field(LsnpField.FROM, currentUserId)
+                .field(LsnpField.TO, toUserId)
+                .field(LsnpField.FILEID, fileId)
+                .field(LsnpField.TOTAL_CHUNKS, totalChunks)
+                .field(LsnpField.TOKEN, currentUserId + "|" + (System.currentTimeMillis() / 1000 + 3600) + "|file")
+                .build();
+    }
+
+    // Encodes the chunk from the file mapping each time it is sent, so nothing but the
+    // metadata is kept between the first send and the ACK.
+    private CompletableFuture<Void> transmitChunk(ChunkMetadata meta) {
+        OutgoingTransfer transfer = meta.transfer;
+        if (transfer.template.ageMillis() > TEMPLATE_REFRESH_MS) {
+            transfer.template = chunkTemplate(meta.toUserId, meta.fileId, meta.totalChunks);
+        }
+        ByteBuffer data;
+        try {
+            data = transfer.source.chunk(meta.chunkIndex);
+        } catch (UncheckedIOException e) {
+            resendDeadlines.add(new ResendDeadline(meta, meta.sendSeq,
+                    System.nanoTime() + transfer.rtt.timeoutNanos(meta.retryCount)));
+            return CompletableFuture.failedFuture(e.getCause());
+        }
+        ChunkCache.Key key = new ChunkCache.Key(transfer.fileHash, transfer.source.chunkSize(), meta.chunkIndex);
+        byte[] deflated = PeerCapabilities.deflateFor(meta.recipientAddress) && PayloadCodec.worthTrying(meta.chunkSize)
+                ? chunkCache.deflated(key, data)
+                : null;
+
+        // Peers that advertised LSNP-B get the chunk as raw bytes instead of base64
+        MessageWriter writer = transfer.template.newMessage(PeerCapabilities.wireFormatFor(meta.recipientAddress))
+                .put(LsnpField.CHUNK_INDEX, meta.chunkIndex)
+                .put(LsnpField.CHUNK_SIZE, meta.chunkSize)
+                .put(LsnpField.MESSAGE_ID, meta.messageId);
+        // Over the chunk as read from the file, so it also covers deflate and base64 on the way
+        if (PeerCapabilities.crcFor(meta.recipientAddress)) {
+            writer.put(LsnpField.CRC, chunkCache.crc(key, data));
+        }
+        if (deflated != null) {
+            writer.put(LsnpField.ENCODING, PayloadCodec.DEFLATE).putBase64(LsnpField.DATA, deflated, 0, deflated.length);
+        } else {
+            writer.putBase64(LsnpField.DATA, data);
+        }
+        long sendSeq = meta.sendSeq;
+        int retries = meta.retryCount;
+        return send(writer, meta.recipientAddress, meta.recipientPort, true)
+                .whenComplete((ok, e) -> {
+                    // Time in the local pacing queue is not round-trip time, so the clock starts
+                    // when the datagram reaches the socket
+                    if (meta.sendSeq == sendSeq) {
+                        meta.lastSentNanos = System.nanoTime();
+                    }
+                    resendDeadlines.add(new ResendDeadline(meta, sendSeq,
+                            System.nanoTime() + transfer.rtt.timeoutNanos(retries)));
+                });
     }
 
     public void sendFileReceived(String toUserId, String fromUserId, String fileId, int toPort, String senderIP) {
+        sendFileReceived(fromUserId, fileId, toPort, senderIP, "COMPLETE");
+    }
+
+    private void sendFileReceived(String fromUserId, String fileId, int toPort, String senderIP, String status) {
         try {
             StringBuilder sb = new StringBuilder();
             String messageId = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
@@ -162,60 +1133,194 @@ public class FileHandler {
             sb.append("TO: ").append(fromUserId).append("\n");
 
             sb.append("FILEID: ").append(fileId).append("\n");
-            sb.append("STATUS: COMPLETE\n");
+            sb.append("STATUS: ").append(status).append("\n");
             sb.append("TIMESTAMP: ").append(System.currentTimeMillis() / 1000).append("\n");
             sb.append("\n");
 
             InetAddress toAddress = InetAddress.getByName(senderIP);
-            socketManager.sendMessage(sb.toString(), toAddress, toPort);
-            VerboseLogger.log("Sent FILE_RECEIVED COMPLETE for fileId " + fileId);
+            socketManager.sendAsync(sb.toString(), toAddress, toPort).whenComplete((ok, e) -> {
+                if (e != null) {
+                    VerboseLogger.log("Failed to send FILE_RECEIVED: {}", e.getMessage());
+                } else {
+                    VerboseLogger.log("Sent FILE_RECEIVED {} for fileId {}", status, fileId);
+                }
+            });
         } catch (Exception e) {
-            VerboseLogger.log("Failed to send FILE_RECEIVED: " + e.getMessage());
+            VerboseLogger.log("Failed to send FILE_RECEIVED: {}", e.getMessage());
         }
     }
 
+    /**
+     * Queues a file for {@code toUserId} and returns at once; the transfer starts when one of the
+     * scheduler's slots is free. Follow it with {@link #transferProgress()}. A folder is sent
+     * whole, packed into one {@link BundleArchive bundle}.
+     */
     public void sendFile(String toUserId, String filePath, String description, InetAddress toAddress, int toPort) {
-        try {
-            File file = new File(filePath);
-            if (!file.exists() || !file.isFile()) {
-                System.err.println("Invalid file path: " + filePath);
+        File file = new File(filePath);
+        if (!file.exists() || !(file.isFile() || file.isDirectory())) {
+            System.err.println("Invalid file path: " + filePath);
+            return;
+        }
+        long size = file.length();
+        if (file.isDirectory()) {
+            try {
+                size = BundleArchive.contentSize(file.toPath());
+            } catch (IOException e) {
+                System.err.println("Cannot read folder " + filePath + ": " + e.getMessage());
                 return;
             }
+        }
+        scheduler.submit(file.getName(), toUserId, size,
+                () -> startTransfer(toUserId, file, description, toAddress, toPort));
+        System.out.println("[INFO] Queued " + file.getName() + " for " + toUserId);
+    }
 
-            byte[] fileBytes = Files.readAllBytes(file.toPath());
-            String fileId = UUID.randomUUID().toString();
-            String fileType = Files.probeContentType(file.toPath());
-            long fileSize = fileBytes.length;
+    // Runs once the scheduler has a slot: packs a folder, sizes chunks, offers the file and hands
+    // back the transfer
+    private OutgoingTransfer startTransfer(String toUserId, File file, String description, InetAddress toAddress,
+            int toPort) throws IOException {
+        String fileId = UUID.randomUUID().toString();
+        Path path = file.toPath();
+        String fileName = file.getName();
+        String fileType;
+        int fileCount = 0;
+        if (file.isDirectory()) {
+            BundleArchive.Packed packed = BundleArchive.pack(path);
+            path = packed.archive();
+            fileName += BundleArchive.SUFFIX;
+            fileType = BundleArchive.FILETYPE;
+            fileCount = packed.fileCount();
+        } else {
+            fileType = Files.probeContentType(path);
+        }
+        int chunkSize = chunkSizeFor(toAddress, toPort);
+        FileChunkSource source;
+        try {
+            source = new FileChunkSource(path, chunkSize, file.isDirectory());
+        } catch (IOException e) {
+            if (file.isDirectory()) {
+                Files.deleteIfExists(path);
+            }
+            throw e;
+        }
+        try {
+            String fileHash = source.sha256();
+            OutgoingTransfer transfer = new OutgoingTransfer(fileId, fileName, toUserId, toAddress, toPort,
+                    source, fileHash);
+            transfer.template = chunkTemplate(toUserId, fileId, source.totalChunks());
+            transfers.put(fileId, transfer);
+            transfersByTag.put(transfer.tag, transfer);
+            sendFileOffer(toUserId, toAddress, fileName, source.size(), fileType, fileId, description, toPort,
+                    chunkSize, fileHash, joinSwarm(transfer, fileHash), fileCount);
+            return transfer;
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+    }
 
-            List<String> chunks = FileChunker.chunkFile(fileBytes, 1024);
-            int totalChunks = chunks.size();
+    // Lists the file's earlier receivers for the offer's PEERS, or returns null if there are none,
+    // and lets the transfer leave to them the chunks they already hold
+    private String joinSwarm(OutgoingTransfer transfer, String fileHash) {
+        if (!SwarmDownload.isEnabled()
+                || !PeerCapabilities.supports(transfer.recipientAddress, SwarmDownload.CAPABILITY)) {
+            return null;
+        }
+        SwarmDownload.Peer recipient = new SwarmDownload.Peer(transfer.toUserId, transfer.recipientAddress,
+                transfer.recipientPort);
+        SwarmDownload.Member member = new SwarmDownload.Member(recipient);
+        transfer.swarmMember = member;
+        List<SwarmDownload.Member> sources = new ArrayList<>();
+        // Inside compute, so a prune cannot drop the map between lookup and put
+        swarmMembers.compute(swarmKey(fileHash, transfer.source.chunkSize()), (key, members) -> {
+            if (members == null) {
+                members = new LinkedHashMap<>();
+            }
+            long now = System.nanoTime();
+            members.values().removeIf(m -> m.isExpired(now));
+            members.remove(recipient.key());
+            sources.addAll(members.values());
+            members.put(recipient.key(), member);
+            if (members.size() > MAX_SWARM_MEMBERS) {
+                members.remove(members.keySet().iterator().next());
+            }
+            return members;
+        });
+        // The most recent receivers are the likeliest to still be online
+        List<SwarmDownload.Member> recent = sources.subList(Math.max(0, sources.size() - SwarmDownload.MAX_PEERS),
+                sources.size());
+        if (recent.isEmpty()) {
+            return null;
+        }
+        transfer.swarmSources = List.copyOf(recent);
+        List<SwarmDownload.Peer> peers = new ArrayList<>();
+        for (SwarmDownload.Member source : recent) {
+            peers.add(source.peer);
+        }
+        return SwarmDownload.encodePeers(peers);
+    }
 
-            sendFileOffer(toUserId, toAddress, file.getName(), fileSize, fileType, fileId, description, toPort);
+    private static String swarmKey(String fileHash, int chunkSize) {
+        return fileHash + "/" + chunkSize;
+    }
 
-            for (int i = 0; i < totalChunks; i++) {
-                String base64Chunk = chunks.get(i);
-                int chunkSize = Base64.getDecoder().decode(base64Chunk).length;
+    // An abandoned receiver is forgotten at once; a complete one stays a source for a while
+    private void leaveSwarm(OutgoingTransfer transfer) {
+        SwarmDownload.Member member = transfer.swarmMember;
+        if (member == null) {
+            return;
+        }
+        String key = swarmKey(transfer.fileHash, transfer.source.chunkSize());
+        if (transfer.window.isAbandoned()) {
+            swarmMembers.computeIfPresent(key, (k, members) -> {
+                members.remove(member.peer.key(), member);
+                return members.isEmpty() ? null : members;
+            });
+            return;
+        }
+        member.expireAfter(TimeUnit.MILLISECONDS.toNanos(SWARM_MEMBER_TTL_MS));
+        ackTimer.schedule(() -> pruneSwarm(key), SWARM_MEMBER_TTL_MS, TimeUnit.MILLISECONDS);
+    }
 
-                sendFileChunk(toUserId, toAddress, fileId, i, totalChunks, chunkSize, base64Chunk, toPort);
+    private void pruneSwarm(String key) {
+        long now = System.nanoTime();
+        swarmMembers.computeIfPresent(key, (k, members) -> {
+            members.values().removeIf(m -> m.isExpired(now));
+            return members.isEmpty() ? null : members;
+        });
+    }
 
-                Thread.sleep(20);
-            }
+    // Called by the scheduler once nothing more will be sent
+    private void endTransfer(OutgoingTransfer transfer) {
+        transfer.source.finishSending();
+        if (transfer.abandonUnsent()) {
+            finishTransfer(transfer);
+        }
+        VerboseLogger.log("Completed sending all FILE_CHUNKs for fileId {}", transfer.fileId);
+    }
 
-            VerboseLogger.log("Completed sending all FILE_CHUNKs for fileId " + fileId);
-        } catch (Exception e) {
-            System.err.println("Failed to send file: " + e.getMessage());
-            e.printStackTrace();
+    // Peers that answer MTU probes get chunks as large as the path carries without fragmenting
+    private int chunkSizeFor(InetAddress toAddress, int toPort) {
+        if (!PathMtu.isEnabled() || !PeerCapabilities.supports(toAddress, PathMtu.CAPABILITY)) {
+            return DEFAULT_CHUNK_SIZE;
         }
+        int datagram = PathMtu.discover(toAddress, toPort, currentUserId);
+        return PathMtu.chunkSizeFor(datagram, PeerCapabilities.wireFormatFor(toAddress));
     }
 
-    private void sendAck(String messageId, InetAddress recipientAddress, int recipientPort) throws IOException {
+    private void sendAck(String messageId, InetAddress recipientAddress, int recipientPort) {
         String ack = String.join("\n",
                 "TYPE:ACK",
                 "MESSAGE_ID:" + messageId,
                 "STATUS:RECEIVED");
 
-        socketManager.sendMessage(ack, recipientAddress, recipientPort);
-        VerboseLogger.log("Sent ACK for message ID: " + messageId + " to " + recipientAddress.getHostAddress());
+        socketManager.sendAsync(ack, recipientAddress, recipientPort).whenComplete((ok, e) -> {
+            if (e != null) {
+                VerboseLogger.log("Failed to send ACK to {}: {}", recipientAddress.getHostAddress(), e.getMessage());
+            } else {
+                VerboseLogger.ack("Sent ACK for message ID: {} to {}", messageId, recipientAddress.getHostAddress());
+            }
+        });
     }
 
     public void handleAck(Map<String, String> msg) {
@@ -223,65 +1328,99 @@ public class FileHandler {
         String status = msg.get("STATUS");
 
         if ("RECEIVED".equalsIgnoreCase(status)) {
-            ChunkMetadata meta = sentChunks.get(messageId);
-            if (meta != null) {
-                meta.acknowledged = true;
-                VerboseLogger.log("ACK received: fileId=" + meta.fileId + ", chunk=" + meta.chunkIndex);
+            OutgoingTransfer transfer = transfersByTag.get(OutgoingTransfer.tagOf(messageId));
+            if (transfer != null) {
+                long now = System.nanoTime();
+                int chunkIndex = OutgoingTransfer.chunkIndexOf(messageId);
+                VerboseLogger.ack("ACK received: fileId={}, chunk={}", transfer.fileId, chunkIndex);
+                ChunkMetadata acked = newestSample(null, acknowledge(transfer, chunkIndex));
+                if (acked != null) {
+                    sampleRtt(transfer, now - acked.lastSentNanos);
+                }
+                retransmitPassed(transfer);
+                scheduler.wakeup();
             } else {
-                VerboseLogger.log("ACK received with status '" + status
-                        + "' but no chunk metadata found for message ID: " + messageId);
+                VerboseLogger.ack("ACK received with status '{}' but no chunk metadata found for message ID: {}", status,
+                        messageId);
             }
         }
     }
 
+    // A lost chunk halves the window and is queued to go out again under a new send sequence,
+    // ahead of the transfer's new chunks. A timed-out chunk passes the sequence its deadline was
+    // set for, so a stale deadline does nothing.
+    private void retransmit(ChunkMetadata meta, long expectedSeq, boolean lost) {
+        OutgoingTransfer transfer = meta.transfer;
+        synchronized (meta) {
+            if (meta.acknowledged || !transfer.isPending(meta) || (expectedSeq >= 0 && meta.sendSeq != expectedSeq)) {
+                return;
+            }
+            if (meta.retryCount >= MAX_RETRIES) {
+                VerboseLogger.log("Max retries reached for chunk {} of fileId {}", meta.chunkIndex, meta.fileId);
+                if (transfer.take(meta.chunkIndex) == meta) {
+                    // The receiver can no longer complete the file, so stop admitting new chunks and
+                    // probe the path again next time in case it no longer carries this chunk size
+                    transfer.window.abandon();
+                    PathMtu.reset(transfer.recipientAddress);
+                    if (transfer.settled(meta)) {
+                        finishTransfer(transfer);
+                    }
+                }
+                return;
+            }
+            transfer.noteLost();
+            if (lost) {
+                transfer.window.onLoss(meta.sendSeq);
+            }
+            long previousSeq = meta.sendSeq;
+            meta.sendSeq = transfer.window.retransmitSeq();
+            transfer.sent(meta, previousSeq);
+            meta.retryCount++;
+        }
+        transfer.queueResend(meta);
+        scheduler.wakeup();
+    }
+
+    private CompletableFuture<Void> resendChunk(ChunkMetadata meta) {
+        return transmitChunk(meta).whenComplete((ok, e) -> {
+            if (e != null) {
+                VerboseLogger.log("Failed to resend chunk {}: {}", meta.chunkIndex, e.getMessage());
+            } else {
+                VerboseLogger.retry("Resent chunk {} of fileId {} (retry {})", meta.chunkIndex, meta.fileId,
+                        meta.retryCount);
+            }
+        });
+    }
+
+    private void finishTransfer(OutgoingTransfer transfer) {
+        if (transfers.remove(transfer.fileId) == null) {
+            return;
+        }
+        transfersByTag.remove(transfer.tag);
+        leaveSwarm(transfer);
+        String outcome = transfer.window.isAbandoned() ? "abandoned" : "complete";
+        System.out.println("[INFO] Transfer of " + transfer.fileName + " to " + transfer.toUserId + " " + outcome + ": "
+                + transfer.window.summary() + ", " + transfer.rtt.summary()
+                + (transfer.fec == null ? "" : ", " + transfer.fec.blocksSent() + " parity blocks, "
+                        + transfer.repairedChunks() + " chunks rebuilt"));
+        VerboseLogger.log("After {}: {}", transfer.fileName, chunkCache.summary());
+    }
+
+    // Sleeps until the earliest resend deadline instead of scanning every outstanding chunk
     private void startResendMonitor() {
         Thread resendThread = new Thread(() -> {
             while (true) {
-                long now = System.currentTimeMillis();
-
-                for (ChunkMetadata meta : sentChunks.values()) {
-                    if (!meta.acknowledged && now - meta.lastSentTime >= RESEND_TIMEOUT_MS) {
-                        if (meta.retryCount >= MAX_RETRIES) {
-                            VerboseLogger.log(
-                                    "Max retries reached for chunk " + meta.chunkIndex + " of fileId " + meta.fileId);
-                            sentChunks.remove(meta.messageId);
-                            continue;
-                        }
-
-                        try {
-                            StringBuilder sb = new StringBuilder();
-                            sb.append("TYPE: FILE_CHUNK\n");
-                            sb.append("FROM: ").append(currentUserId).append("\n");
-                            sb.append("TO: ").append(meta.toUserId).append("\n");
-                            sb.append("FILEID: ").append(meta.fileId).append("\n");
-                            sb.append("CHUNK_INDEX: ").append(meta.chunkIndex).append("\n");
-                            sb.append("TOTAL_CHUNKS: ").append(meta.totalChunks).append("\n");
-                            sb.append("CHUNK_SIZE: ").append(meta.chunkSize).append("\n");
-                            sb.append("MESSAGE_ID: ").append(meta.messageId).append("\n");
-                            sb.append("TOKEN: ").append(currentUserId).append("|")
-                                    .append(System.currentTimeMillis() / 1000 + 3600).append("|file\n");
-                            sb.append("DATA: ").append(meta.base64Data).append("\n\n");
-
-                            socketManager.sendMessage(sb.toString(), meta.recipientAddress, meta.recipientPort);
-
-                            meta.retryCount++;
-                            meta.lastSentTime = now;
-
-                            VerboseLogger.log("Resent chunk " + meta.chunkIndex + " of fileId " + meta.fileId
-                                    + " (retry " + meta.retryCount + ")");
-                        } catch (Exception e) {
-                            VerboseLogger.log("Failed to resend chunk " + meta.chunkIndex + ": " + e.getMessage());
-                        }
-                    }
-                }
                 try {
-                    Thread.sleep(500); // Check every 0.5 sec
+                    ResendDeadline due = resendDeadlines.take();
+                    retransmit(due.meta, due.sendSeq, true);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
+                } catch (Exception e) {
+                    VerboseLogger.log("Failed to resend chunk: {}", e.getMessage());
                 }
             }
-        });
+        }, "lsnp-file-resend");
 
         resendThread.setDaemon(true);
         resendThread.start();
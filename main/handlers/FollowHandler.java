@@ -36,6 +36,15 @@ public class FollowHandler {
         return Collections.unmodifiableList(followedPeers);
     }
 
+    public boolean isFollowing(String userId) {
+        for (FollowedPeer peer : followedPeers) {
+            if (peer.userId.equals(userId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void follow(String targetUserId, String targetIp, int targetPort, long ttlSeconds) throws Exception {
         long now = Instant.now().getEpochSecond();
 
@@ -54,7 +63,7 @@ public class FollowHandler {
 
         // send message
         VerboseLogger.send(msg, targetIp);
-        socketManager.sendMessage(MessageParser.serialize(msg), InetAddress.getByName(targetIp), targetPort);
+        socketManager.sendBlocking(MessageParser.serialize(msg), InetAddress.getByName(targetIp), targetPort);
 
         // update local followed list (if already present, replace)
         followedPeers.removeIf(p -> p.userId.equals(targetUserId));
@@ -89,7 +98,7 @@ public class FollowHandler {
         msg.put("TOKEN", token);
 
         VerboseLogger.send(msg, peer.ip);
-        socketManager.sendMessage(MessageParser.serialize(msg), InetAddress.getByName(peer.ip), peer.port);
+        socketManager.sendBlocking(MessageParser.serialize(msg), InetAddress.getByName(peer.ip), peer.port);
 
         followedPeers.remove(peer);
         System.out.println("You have unfollowed " + targetUserId);
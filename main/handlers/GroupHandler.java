@@ -1,7 +1,12 @@
 package main.handlers;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import main.UDPSocketManager;
 import main.data.GroupStore;
 import main.utils.*;
@@ -10,6 +15,9 @@ public class GroupHandler {
     private final UDPSocketManager socketManager;
     private final GroupManager groupManager;
     private final String currentUserId;
+    private final Map<String, MessageTemplate> groupTemplates = new ConcurrentHashMap<>();
+    // Rebuild cached headers well before their TOKEN expires
+    private static final long TEMPLATE_REFRESH_MS = 30 * 60 * 1000L;
 
     public GroupHandler(UDPSocketManager socketManager, GroupManager groupManager, String currentUserId) {
         this.socketManager = socketManager;
@@ -28,7 +36,7 @@ public class GroupHandler {
             case "GROUP_CREATE" -> handleGroupCreate(msg, senderIP);
             case "GROUP_UPDATE" -> handleGroupUpdate(msg, senderIP);
             case "GROUP_MESSAGE" -> handleGroupMessage(msg, senderIP);
-            default -> VerboseLogger.log("GroupHandler: Unknown type " + type);
+            default -> VerboseLogger.log("GroupHandler: Unknown type {}", type);
         }
     }
 
@@ -66,12 +74,12 @@ public class GroupHandler {
 
         boolean created = groupManager.createGroup(groupId, groupName, members, creatorUserId.split("@")[0], timestamp);
         if (created) {
-            VerboseLogger.log("Group created: " + groupName + " (" + groupId + ")");
+            VerboseLogger.log("Group created: {} ({})", groupName, groupId);
             if (members.containsKey(currentUserId.split("@")[0])) {
                 TerminalDisplay.displayGroupCreate(groupName);
             }
         } else {
-            VerboseLogger.log("Group creation failed: group ID already exists: " + groupId);
+            VerboseLogger.log("Group creation failed: group ID already exists: {}", groupId);
         }
     }
 
@@ -88,13 +96,13 @@ public class GroupHandler {
 
         GroupStore.Group group = groupManager.getGroup(groupId);
         if (group == null) {
-            VerboseLogger.log("GROUP_UPDATE for non-existing group " + groupId);
+            VerboseLogger.log("GROUP_UPDATE for non-existing group {}", groupId);
             return;
         }
 
         // Only creator or members allowed to update (example rule)
         if (!group.getCreatorUserId().equals(fromUserId)) {
-            VerboseLogger.drop("User " + fromUserId + " unauthorized to update group " + groupId);
+            VerboseLogger.drop("User {} unauthorized to update group {}", fromUserId, groupId);
             return;
         }
 
@@ -103,7 +111,7 @@ public class GroupHandler {
 
         boolean changed = groupManager.updateGroupMembers(groupId, addMembers, removeMembers);
         if (changed) {
-            VerboseLogger.log("Group \"" + group.getGroupName() + "\" member list updated.");
+            VerboseLogger.log("Group \"{}\" member list updated.", group.getGroupName());
             TerminalDisplay.displayGroupUpdate(group.getGroupName(), group.isMember(currentUserId.split("@")[0]));
         } else {
             VerboseLogger.log("Group update received but no changes.");
@@ -122,12 +130,12 @@ public class GroupHandler {
         String content = msg.get("CONTENT");
 
         if (!groupManager.isUserMember(groupId, fromUser)) {
-            VerboseLogger.drop("User " + fromUser + " not a member of group " + groupId);
+            VerboseLogger.drop("User {} not a member of group {}", fromUser, groupId);
             return;
         }
 
         TerminalDisplay.displayGroupMessage(fromUser, groupId, content);
-        VerboseLogger.log("GROUP_MESSAGE from " + fromUser + " to group " + groupId + ": " + content);
+        VerboseLogger.log("GROUP_MESSAGE from {} to group {}: {}", fromUser, groupId, content);
     }
 
     private Map<String, InetSocketAddress> parseMembersWithPorts(String membersStr) {
@@ -157,7 +165,7 @@ public class GroupHandler {
                 InetSocketAddress addr = new InetSocketAddress(ip, port);
                 membersMap.put(member, addr);
             } catch (Exception e) {
-                VerboseLogger.log("Failed to parse member: " + member + " - " + e.getMessage());
+                VerboseLogger.log("Failed to parse member: {} - {}", member, e.getMessage());
             }
         }
         return membersMap;
@@ -183,7 +191,7 @@ public class GroupHandler {
         try {
             return Long.parseLong(tsStr);
         } catch (Exception e) {
-            VerboseLogger.log("Invalid timestamp: " + tsStr);
+            VerboseLogger.log("Invalid timestamp: {}", tsStr);
             return System.currentTimeMillis() / 1000L;
         }
     }
@@ -195,32 +203,64 @@ public class GroupHandler {
             return;
         }
 
+        // The message is identical for every member, so it is serialized once per wire format
+        // and encoding in use, and the same bytes are queued to each member.
+        MessageTemplate template = groupTemplate(groupId);
         long timestamp = System.currentTimeMillis() / 1000;
-        String token = TokenValidator.generate(currentUserId, 3600, "group");
+        MessageWriter[] writers = new MessageWriter[WireFormat.values().length * 2];
+        ByteBuffer[] messages = new ByteBuffer[writers.length];
 
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
         Map<String, InetSocketAddress> members = group.getMembers();
-        for (Map.Entry<String, InetSocketAddress> entry : members.entrySet()) {
-            String memberId = entry.getKey();
-            InetSocketAddress addr = entry.getValue();
-
-            if (memberId.equals(currentUserId.split("@")[0]))
-                continue; // skip self
-
-            StringBuilder sb = new StringBuilder();
-            sb.append("TYPE: GROUP_MESSAGE\n");
-            sb.append("FROM: ").append(currentUserId).append("\n");
-            sb.append("GROUP_ID: ").append(groupId).append("\n");
-            sb.append("CONTENT: ").append(content).append("\n");
-            sb.append("TIMESTAMP: ").append(timestamp).append("\n");
-            sb.append("TOKEN: ").append(token).append("\n\n");
-
-            try {
-                socketManager.sendMessage(sb.toString(), addr.getAddress(), addr.getPort());
-                VerboseLogger.log("Sent GROUP_MESSAGE to " + memberId + " at " + addr);
-            } catch (Exception e) {
-                VerboseLogger.log("Failed to send GROUP_MESSAGE to " + memberId + ": " + e.getMessage());
+        try {
+            for (Map.Entry<String, InetSocketAddress> entry : members.entrySet()) {
+                String memberId = entry.getKey();
+                InetSocketAddress addr = entry.getValue();
+
+                if (memberId.equals(currentUserId.split("@")[0]))
+                    continue; // skip self
+
+                WireFormat format = PeerCapabilities.wireFormatFor(addr.getAddress());
+                boolean deflate = PeerCapabilities.deflateFor(addr.getAddress());
+                int variant = format.ordinal() * 2 + (deflate ? 1 : 0);
+                if (writers[variant] == null) {
+                    writers[variant] = template.newMessage(format)
+                            .putCompressible(LsnpField.CONTENT, content, deflate)
+                            .put(LsnpField.TIMESTAMP, timestamp);
+                    messages[variant] = writers[variant].finish();
+                }
+                sends.add(socketManager.sendAsync(messages[variant].duplicate(), addr.getAddress(), addr.getPort()).whenComplete((ok, e) -> {
+                    if (e != null) {
+                        VerboseLogger.log("Failed to send GROUP_MESSAGE to {}: {}", memberId, e.getMessage());
+                    } else {
+                        VerboseLogger.log("Sent GROUP_MESSAGE to {} at {}", memberId, addr);
+                    }
+                }));
             }
+        } catch (IOException e) {
+            System.err.println("Could not send GROUP_MESSAGE to " + groupId + ": " + e.getMessage());
         }
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).whenComplete((ok, e) -> {
+            for (MessageWriter writer : writers) {
+                if (writer != null) {
+                    writer.release();
+                }
+            }
+        });
+    }
+
+    private MessageTemplate groupTemplate(String groupId) {
+        MessageTemplate template = groupTemplates.get(groupId);
+        if (template == null || template.ageMillis() > TEMPLATE_REFRESH_MS) {
+            template = MessageTemplate.builder()
+                    .field(LsnpField.TYPE, "GROUP_MESSAGE")
+                    .field(LsnpField.FROM, currentUserId)
+                    .field(LsnpField.GROUP_ID, groupId)
+                    .field(LsnpField.TOKEN, TokenValidator.generate(currentUserId, 3600_000L, "group"))
+                    .build();
+            groupTemplates.put(groupId, template);
+        }
+        return template;
     }
 
     public void sendGroupUpdate(String groupId, Map<String, InetSocketAddress> addMembers,
@@ -248,7 +288,7 @@ public class GroupHandler {
         msg.put("TIMESTAMP", String.valueOf(System.currentTimeMillis() / 1000L));
         msg.put("TOKEN", TokenValidator.generate(currentUserId, 3600, "group"));
 
-        String serialized = MessageParser.serialize(msg);
+        ByteBuffer serialized = ByteBuffer.wrap(MessageParser.serialize(msg).getBytes(StandardCharsets.UTF_8));
 
         Map<String, InetSocketAddress> members = group.getMembers();
         for (Map.Entry<String, InetSocketAddress> entry : members.entrySet()) {
@@ -258,12 +298,13 @@ public class GroupHandler {
             if (memberId.equals(currentUserId.split("@")[0]))
                 continue; // skip self
 
-            try {
-                socketManager.sendMessage(serialized, addr.getAddress(), addr.getPort());
-                VerboseLogger.log("Sent GROUP_UPDATE to " + memberId + " at " + addr);
-            } catch (Exception e) {
-                VerboseLogger.log("Failed to send GROUP_UPDATE to " + memberId + ": " + e.getMessage());
-            }
+            socketManager.sendAsync(serialized.duplicate(), addr.getAddress(), addr.getPort()).whenComplete((ok, e) -> {
+                if (e != null) {
+                    VerboseLogger.log("Failed to send GROUP_UPDATE to {}: {}", memberId, e.getMessage());
+                } else {
+                    VerboseLogger.log("Sent GROUP_UPDATE to {} at {}", memberId, addr);
+                }
+            });
         }
 
         TerminalDisplay.displayGroupUpdate(group.getGroupName(), group.isMember(currentUserId.split("@")[0]));
@@ -20,7 +20,7 @@ public class LikeHandler {
     public LikeHandler(UDPSocketManager socketManager, String currentUser) {
         this.socketManager = socketManager;
         this.currentUser = currentUser;
-        VerboseLogger.log("LikeHandler created for user: " + currentUser);
+        VerboseLogger.log("LikeHandler created for user: {}", currentUser);
     }
 
     /**
@@ -46,10 +46,10 @@ public class LikeHandler {
         message.put("TOKEN", token);
 
         VerboseLogger.send(message, "255.255.255.255");
-        socketManager.sendMessage(MessageParser.serialize(message),
+        socketManager.sendBlocking(MessageParser.serialize(message),
                 InetAddress.getByName("255.255.255.255"),
                 socketManager.getPort());
-        VerboseLogger.log("Sent LIKE for message ID: " + likedMessageId);
+        VerboseLogger.log("Sent LIKE for message ID: {}", likedMessageId);
     }
 
     /**
@@ -71,7 +71,7 @@ public class LikeHandler {
 
         // Validate token and IP as per other handlers
         if (!TokenValidator.validate(message, "broadcast")) {
-            VerboseLogger.drop("Invalid or expired token for LIKE message from " + senderId);
+            VerboseLogger.drop("Invalid or expired token for LIKE message from {}", senderId);
             return;
         }
 
@@ -79,7 +79,7 @@ public class LikeHandler {
         String user = senderId.split("@")[0];
 
         if (!IPLogger.verifyIP(senderId, fromIP)) {
-            VerboseLogger.drop("IP mismatch for user " + senderId + " from " + fromIP + " for LIKE message");
+            VerboseLogger.drop("IP mismatch for user {} from {} for LIKE message", senderId, fromIP);
             return;
         }
 
@@ -87,6 +87,6 @@ public class LikeHandler {
         // (e.g., in a database or in-memory map associated with the original post).
         // For this example, we'll just display it.
         TerminalDisplay.displayLikeNotification(user, likedMessageId);
-        VerboseLogger.log("Received LIKE from " + user + " for message ID: " + likedMessageId);
+        VerboseLogger.log("Received LIKE from {} for message ID: {}", user, likedMessageId);
     }
 }
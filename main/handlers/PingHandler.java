@@ -18,7 +18,7 @@ public class PingHandler {
             String userIdWithIP = userId + "@" + localIP.getHostAddress();
             String message = "TYPE: PING\nUSER_ID: " + userIdWithIP;
             InetAddress broadcastAddress = InetAddress.getByName("255.255.255.255");
-            socketManager.sendMessage(message, broadcastAddress, socketManager.getPort());
+            socketManager.sendBlocking(message, broadcastAddress, socketManager.getPort());
         } catch (Exception e) {
             System.err.println("[ERROR] Failed to send PING: " + e.getMessage());
         }
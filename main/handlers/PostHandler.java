@@ -8,7 +8,10 @@ import java.util.Map;
 import java.util.UUID;
 import main.UDPSocketManager;
 import main.utils.IPLogger;
-import main.utils.MessageParser;
+import main.utils.LsnpField;
+import main.utils.MessageTemplate;
+import main.utils.MessageWriter;
+import main.utils.PeerCapabilities;
 import main.utils.TerminalDisplay;
 import main.utils.TokenValidator;
 import main.utils.VerboseLogger;
@@ -50,13 +53,22 @@ public class PostHandler {
             message.forEach((k, v) -> System.out.println("  " + k + ": " + v));
         }
 
-        // Send only to followed peers
+        // Send only to followed peers; each gets the encoding it advertised
         for (FollowHandler.FollowedPeer peer : followHandler.getFollowedPeers()) {
-            socketManager.sendMessage(
-                MessageParser.serialize(message),
-                InetAddress.getByName(peer.ip),
-                peer.port
-            );
+            InetAddress address = InetAddress.getByName(peer.ip);
+            MessageWriter writer = MessageTemplate.blankMessage(PeerCapabilities.wireFormatFor(address))
+                    .put(LsnpField.TYPE, "POST")
+                    .put(LsnpField.USER_ID, userIdWithIP)
+                    .putCompressible(LsnpField.CONTENT, content, PeerCapabilities.deflateFor(address))
+                    .put(LsnpField.TTL, ttlSeconds)
+                    .put(LsnpField.MESSAGE_ID, message.get("MESSAGE_ID"))
+                    .put(LsnpField.TOKEN, token);
+            socketManager.sendAsync(writer.finish(), address, peer.port).whenComplete((ok, e) -> {
+                writer.release();
+                if (e != null) {
+                    System.err.println("Failed to send post to " + peer.userId + ": " + e.getMessage());
+                }
+            });
         }
     }
 
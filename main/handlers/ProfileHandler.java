@@ -10,8 +10,10 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import main.UDPSocketManager;
 import main.utils.MessageParser;
+import main.utils.PeerCapabilities;
 import main.utils.VerboseLogger;
 
 
@@ -25,7 +27,7 @@ public class ProfileHandler {
     private String avatarEncoding;  
     private String avatarData;      
 
-    private final Map<String, Map<String, String>> knownProfiles = new HashMap<>();
+    private final Map<String, Map<String, String>> knownProfiles = new ConcurrentHashMap<>();
 
     public ProfileHandler(UDPSocketManager socketManager, String username, String displayName, String status) {
         this.socketManager = socketManager;
@@ -43,10 +45,14 @@ public class ProfileHandler {
         profileMsg.put("USER_ID", username + "@" + localIp);
         profileMsg.put("TYPE", "PROFILE");
         profileMsg.put("DISPLAY_NAME", username);
+        String capabilities = PeerCapabilities.advertised();
+        if (capabilities != null) {
+            profileMsg.put("CAPABILITIES", capabilities);
+        }
 
         String serialized = MessageParser.serialize(profileMsg);
         InetAddress broadcastAddress = InetAddress.getByName("192.168.100.255"); // or dynamic
-        socketManager.sendMessage(serialized, broadcastAddress, 50999);
+        socketManager.sendBlocking(serialized, broadcastAddress, 50999);
 
         /*if (VerboseLogger.isEnabled()) { 
             System.out.println("[DEBUG] Sending PROFILE to " + broadcastAddress.getHostAddress() + ":50999");
@@ -69,6 +75,7 @@ public class ProfileHandler {
         }
 
         knownProfiles.put(userId, new HashMap<>(parsed));
+        PeerCapabilities.update(fromIP, parsed.get("CAPABILITIES"));
 
         VerboseLogger.recv(parsed, fromIP);
 
@@ -19,7 +19,7 @@ public class RevokeHandler {
     public RevokeHandler(UDPSocketManager socketManager, String currentUser) {
         this.socketManager = socketManager;
         this.currentUser = currentUser;
-        VerboseLogger.log("RevokeHandler created for user: " + currentUser);
+        VerboseLogger.log("RevokeHandler created for user: {}", currentUser);
     }
 
     /**
@@ -44,10 +44,10 @@ public class RevokeHandler {
         message.put("TOKEN", revokeToken);
 
         VerboseLogger.send(message, "255.255.255.255");
-        socketManager.sendMessage(MessageParser.serialize(message),
+        socketManager.sendBlocking(MessageParser.serialize(message),
                 InetAddress.getByName("255.255.255.255"),
                 socketManager.getPort());
-        VerboseLogger.log("Sent REVOKE for token: " + tokenToRevoke);
+        VerboseLogger.log("Sent REVOKE for token: {}", tokenToRevoke);
     }
 
     /**
@@ -68,28 +68,28 @@ public class RevokeHandler {
         }
 
         if (!TokenValidator.validate(message, "revoke")) {
-            VerboseLogger.drop("Invalid or expired token for REVOKE message from " + senderId);
+            VerboseLogger.drop("Invalid or expired token for REVOKE message from {}", senderId);
             return;
         }
 
         if (!IPLogger.verifyIP(senderId, fromIP)) {
-            VerboseLogger.drop("IP mismatch for user " + senderId + " from " + fromIP + " for REVOKE message");
+            VerboseLogger.drop("IP mismatch for user {} from {} for REVOKE message", senderId, fromIP);
             return;
         }
 
         try {
             String[] tokenParts = tokenToRevoke.split("\\|");
             if (tokenParts.length < 1 || !tokenParts[0].equals(senderId.split("@")[0])) {
-                VerboseLogger.drop("REVOKE message sender does not match token owner: " + senderId + " vs " + tokenParts[0]);
+                VerboseLogger.drop("REVOKE message sender does not match token owner: {} vs {}", senderId, tokenParts[0]);
                 return;
             }
         } catch (Exception e) {
-            VerboseLogger.drop("Invalid TOKEN_TO_REVOKE format: " + tokenToRevoke);
+            VerboseLogger.drop("Invalid TOKEN_TO_REVOKE format: {}", tokenToRevoke);
             return;
         }
 
 
         TokenValidator.revoke(tokenToRevoke);
-        VerboseLogger.log("Successfully processed REVOKE for token: " + tokenToRevoke + " from " + senderId);
+        VerboseLogger.log("Successfully processed REVOKE for token: {} from {}", tokenToRevoke, senderId);
     }
 }
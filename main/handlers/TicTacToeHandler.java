@@ -7,7 +7,11 @@ import main.Main;
 import main.UDPSocketManager;
 import main.utils.ConsoleInput;
 import main.utils.InputManager;
+import main.utils.LsnpField;
 import main.utils.MessageParser;
+import main.utils.MessageTemplate;
+import main.utils.MessageWriter;
+import main.utils.PeerCapabilities;
 import main.utils.VerboseLogger;
 
 /**
@@ -17,6 +21,8 @@ public class TicTacToeHandler {
     private final UDPSocketManager socketManager;
     private final String currentUser;
     private final Scanner scanner;
+    // Rebuild cached headers well before their TOKEN expires
+    private static final long TEMPLATE_REFRESH_MS = 30 * 60 * 1000L;
 
     private static class GameState {
         final char[] board = new char[9];
@@ -27,6 +33,7 @@ public class TicTacToeHandler {
         String opponentIp;
         int opponentPort;
         boolean myTurn;
+        MessageTemplate moveTemplate;
 
         GameState(String gameId) {
             this.gameId = gameId;
@@ -80,8 +87,8 @@ public class TicTacToeHandler {
             invite.put("TIMESTAMP", String.valueOf(now));
             invite.put("TOKEN", token);
 
-            socketManager.sendMessage(MessageParser.serialize(invite), InetAddress.getByName(opponentIp), opponentPort);
-            VerboseLogger.log("TicTacToe INVITE sent to " + opponentUserId + " @ " + opponentIp + ":" + opponentPort);
+            socketManager.sendBlocking(MessageParser.serialize(invite), InetAddress.getByName(opponentIp), opponentPort);
+            VerboseLogger.log("TicTacToe INVITE sent to {} @ {}:{}", opponentUserId, opponentIp, opponentPort);
 
             GameState game = new GameState(gameId);
             game.mySymbol = "X";
@@ -117,7 +124,7 @@ public class TicTacToeHandler {
                 handleResult(msg);
                 break;
             default:
-                VerboseLogger.log("TicTacToeHandler received unknown type: " + type);
+                VerboseLogger.log("TicTacToeHandler received unknown type: {}", type);
         }
     }
 
@@ -174,7 +181,7 @@ public class TicTacToeHandler {
             if (gameId == null) return;
             GameState game = activeGames.get(gameId);
             if (game == null) {
-                VerboseLogger.log("Received move for unknown game: " + gameId);
+                VerboseLogger.log("Received move for unknown game: {}", gameId);
                 return;
             }
 
@@ -238,22 +245,24 @@ public class TicTacToeHandler {
     // =========================
     private void sendMove(GameState game, int pos) {
         try {
-            long now = Instant.now().getEpochSecond();
-            String token = currentUser + "@" + InetAddress.getLocalHost().getHostAddress() + "|" + (now + 3600) + "|game";
-
-            Map<String, String> move = new LinkedHashMap<>();
-            move.put("TYPE", "TICTACTOE_MOVE");
-            move.put("FROM", currentUser + "@" + InetAddress.getLocalHost().getHostAddress());
-            move.put("TO", game.opponentUserId);
-            move.put("GAMEID", game.gameId);
-            move.put("MESSAGE_ID", UUID.randomUUID().toString().replace("-", "").substring(0, 16));
-            move.put("POSITION", String.valueOf(pos));
-            move.put("SYMBOL", game.mySymbol);
-            move.put("TIMESTAMP", String.valueOf(now));
-            move.put("TOKEN", token);
-
-            socketManager.sendMessage(MessageParser.serialize(move), InetAddress.getByName(game.opponentIp), game.opponentPort);
-            VerboseLogger.log("Sent TICTACTOE_MOVE game=" + game.gameId + " pos=" + pos);
+            if (game.moveTemplate == null || game.moveTemplate.ageMillis() > TEMPLATE_REFRESH_MS) {
+                game.moveTemplate = gameTemplate(game, "TICTACTOE_MOVE");
+            }
+            InetAddress opponent = InetAddress.getByName(game.opponentIp);
+            MessageWriter move = game.moveTemplate.newMessage(PeerCapabilities.wireFormatFor(opponent))
+                    .put(LsnpField.MESSAGE_ID, UUID.randomUUID().toString().replace("-", "").substring(0, 16))
+                    .put(LsnpField.POSITION, pos)
+                    .put(LsnpField.SYMBOL, game.mySymbol)
+                    .put(LsnpField.TIMESTAMP, Instant.now().getEpochSecond());
+
+            socketManager.sendAsync(move.finish(), opponent, game.opponentPort)
+                    .whenComplete((ok, e) -> {
+                        move.release();
+                        if (e != null) {
+                            System.err.println("Error sending move: " + e.getMessage());
+                        }
+                    });
+            VerboseLogger.log("Sent TICTACTOE_MOVE game={} pos={}", game.gameId, pos);
         } catch (Exception e) {
             System.err.println("Error sending move: " + e.getMessage());
             e.printStackTrace();
@@ -262,21 +271,20 @@ public class TicTacToeHandler {
 
     private void sendResultAndFinish(GameState game, String result) {
         try {
-            long now = Instant.now().getEpochSecond();
-            String token = currentUser + "@" + InetAddress.getLocalHost().getHostAddress() + "|" + (now + 3600) + "|game";
-
-            Map<String, String> res = new LinkedHashMap<>();
-            res.put("TYPE", "TICTACTOE_RESULT");
-            res.put("FROM", currentUser + "@" + InetAddress.getLocalHost().getHostAddress());
-            res.put("TO", game.opponentUserId);
-            res.put("GAMEID", game.gameId);
-            res.put("MESSAGE_ID", UUID.randomUUID().toString().replace("-", "").substring(0, 16));
-            res.put("RESULT", result);
-            res.put("SYMBOL", game.mySymbol);
-            res.put("TIMESTAMP", String.valueOf(now));
-            res.put("TOKEN", token);
-
-            socketManager.sendMessage(MessageParser.serialize(res), InetAddress.getByName(game.opponentIp), game.opponentPort);
+            InetAddress opponent = InetAddress.getByName(game.opponentIp);
+            MessageWriter res = gameTemplate(game, "TICTACTOE_RESULT").newMessage(PeerCapabilities.wireFormatFor(opponent))
+                    .put(LsnpField.MESSAGE_ID, UUID.randomUUID().toString().replace("-", "").substring(0, 16))
+                    .put(LsnpField.RESULT, result)
+                    .put(LsnpField.SYMBOL, game.mySymbol)
+                    .put(LsnpField.TIMESTAMP, Instant.now().getEpochSecond());
+
+            socketManager.sendAsync(res.finish(), opponent, game.opponentPort)
+                    .whenComplete((ok, e) -> {
+                        res.release();
+                        if (e != null) {
+                            System.err.println("Error sending result: " + e.getMessage());
+                        }
+                    });
             activeGames.remove(game.gameId);
             Main.inGame = false;
             System.out.println("Game finished (" + result + "). Returning to main menu.");
@@ -286,6 +294,19 @@ public class TicTacToeHandler {
         }
     }
 
+    // FROM, TO, GAMEID and TOKEN do not change during a game, so they are encoded once.
+    private MessageTemplate gameTemplate(GameState game, String type) throws Exception {
+        long now = Instant.now().getEpochSecond();
+        String self = currentUser + "@" + InetAddress.getLocalHost().getHostAddress();
+        return MessageTemplate.builder()
+                .field(LsnpField.TYPE, type)
+                .field(LsnpField.FROM, self)
+                .field(LsnpField.TO, game.opponentUserId)
+                .field(LsnpField.GAMEID, game.gameId)
+                .field(LsnpField.TOKEN, self + "|" + (now + 3600) + "|game")
+                .build();
+    }
+
     // =========================
     // Local input for moves
     // =========================
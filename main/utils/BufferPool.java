@@ -0,0 +1,80 @@
+package main.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size pool of ByteBuffers (direct by default). Buffers are handed out cleared and can
+ * be returned from any thread; once the pool is full, returned buffers are left to the GC.
+ * {@link #tryAcquire()} also bounds how many buffers may be out at once.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int maxOutstanding;
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, true);
+    }
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this(bufferSize, maxPooled, direct, Integer.MAX_VALUE);
+    }
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct, int maxOutstanding) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    public ByteBuffer acquire() {
+        outstanding.incrementAndGet();
+        return take();
+    }
+
+    /** Like {@link #acquire()}, but returns null while {@code maxOutstanding} buffers are out. */
+    public ByteBuffer tryAcquire() {
+        int out;
+        do {
+            out = outstanding.get();
+            if (out >= maxOutstanding) {
+                return null;
+            }
+        } while (!outstanding.compareAndSet(out, out + 1));
+        return take();
+    }
+
+    private ByteBuffer take() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        outstanding.decrementAndGet();
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int available() {
+        return free.size();
+    }
+
+    public int outstanding() {
+        return outstanding.get();
+    }
+}
@@ -0,0 +1,154 @@
+package main.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A folder sent as one file. Every regular file under it is packed, in path order, into a single
+ * stream: the relative path and size of each, then its bytes. The stream is offered and sent like
+ * any other file, so a folder of thousands of small files takes one FILE_OFFER, one answer and one
+ * run of chunks, and sending the same folder again gives the same FILEHASH. The receiver unpacks
+ * it in one sequential pass once it has arrived whole.
+ */
+public final class BundleArchive {
+    public static final String FILETYPE = "application/x-lsnp-bundle";
+    /** Appended to the folder's name in FILENAME, so a bundle is recognised even after a restart. */
+    public static final String SUFFIX = ".lsnpb";
+
+    private static final int MAGIC = 0x4C534E42;
+    private static final int MAX_PATH_BYTES = 4096;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    public record Packed(Path archive, int fileCount) {
+    }
+
+    private BundleArchive() {
+    }
+
+    /** Bytes in the regular files under {@code dir}, for progress before the folder is packed. */
+    public static long contentSize(Path dir) throws IOException {
+        long size = 0;
+        for (Path file : filesUnder(dir)) {
+            size += Files.size(file);
+        }
+        return size;
+    }
+
+    /** Packs {@code dir} into a temporary file, which the caller deletes. */
+    public static Packed pack(Path dir) throws IOException {
+        List<Path> files = filesUnder(dir);
+        Path archive = Files.createTempFile("lsnp-", SUFFIX);
+        byte[] buffer = new byte[BUFFER_BYTES];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(archive),
+                BUFFER_BYTES))) {
+            out.writeInt(MAGIC);
+            out.writeInt(files.size());
+            for (Path file : files) {
+                byte[] name = dir.relativize(file).toString().replace(File.separatorChar, '/')
+                        .getBytes(StandardCharsets.UTF_8);
+                if (name.length > MAX_PATH_BYTES) {
+                    throw new IOException("Path too long to send: " + file);
+                }
+                long size = Files.size(file);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(size);
+                try (InputStream in = Files.newInputStream(file)) {
+                    copy(in, out, size, buffer, file);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(archive);
+            throw e;
+        }
+        VerboseLogger.log("Packed {} files of {} into {}", files.size(), dir, archive);
+        return new Packed(archive, files.size());
+    }
+
+    /** True if {@code path} was named as a bundle and starts like one. */
+    public static boolean isBundle(Path path) {
+        if (!path.getFileName().toString().endsWith(SUFFIX)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Unpacks a received bundle into a new folder beside it, named after it without the suffix,
+     * and deletes the bundle. Returns the folder.
+     *
+     * @throws IOException if the bundle is malformed or names a path outside the folder; files
+     *                     already written are left in place, and so is the bundle
+     */
+    public static Path unpackBeside(Path archive) throws IOException {
+        String name = archive.getFileName().toString();
+        String base = name.substring(0, name.length() - SUFFIX.length());
+        Path folder = archive.resolveSibling(base.isEmpty() ? "bundle" : base);
+        for (int i = 1; Files.exists(folder); i++) {
+            folder = archive.resolveSibling(base + " (" + i + ")");
+        }
+        Path root = Files.createDirectories(folder).toAbsolutePath().normalize();
+        byte[] buffer = new byte[BUFFER_BYTES];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(archive),
+                BUFFER_BYTES))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a bundle: " + archive);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int length = in.readUnsignedShort();
+                if (length == 0 || length > MAX_PATH_BYTES) {
+                    throw new IOException("Bad path length " + length + " in " + archive);
+                }
+                byte[] path = new byte[length];
+                in.readFully(path);
+                String entry = new String(path, StandardCharsets.UTF_8);
+                long size = in.readLong();
+                // Paths come from the network: nothing may land outside the new folder
+                Path target = root.resolve(entry).normalize();
+                if (!target.startsWith(root) || target.equals(root) || size < 0) {
+                    throw new IOException("Unsafe entry " + entry + " in " + archive);
+                }
+                Files.createDirectories(target.getParent());
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    copy(in, out, size, buffer, archive);
+                }
+            }
+        }
+        Files.delete(archive);
+        return folder;
+    }
+
+    // Regular files only, in path order; links are not followed
+    private static List<Path> filesUnder(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            List<Path> files = new ArrayList<>();
+            walk.filter(p -> Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)).sorted()
+                    .forEach(files::add);
+            return files;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long size, byte[] buffer, Path source)
+            throws IOException {
+        long left = size;
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new EOFException(source + " ended " + left + " bytes early");
+            }
+            out.write(buffer, 0, read);
+            left -= read;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package main.utils;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Encoded file chunks shared by every transfer of the same content. A chunk is addressed by the
+ * SHA-256 of its file, the chunk size and its index. That pins its bytes without hashing each chunk
+ * again, so sending one file to several peers, again later, or resending a chunk, computes its CRC32C
+ * and deflated form once. Least recently used entries are evicted past
+ * {@code lsnp.chunkCacheBytes} (default 32 MB; 0 turns the cache off).
+ */
+public final class ChunkCache {
+    private static final long MAX_BYTES = Long.getLong("lsnp.chunkCacheBytes", 32L * 1024 * 1024);
+    // Rough heap cost of an entry beyond its deflated bytes
+    private static final int ENTRY_OVERHEAD = 96;
+
+    public record Key(String fileHash, int chunkSize, int index) {
+    }
+
+    private static final class Entry {
+        long crc = -1;
+        boolean deflateTried = false;
+        // Null if deflating did not make the chunk smaller
+        byte[] deflated;
+
+        int bytes() {
+            return ENTRY_OVERHEAD + (deflated == null ? 0 : deflated.length);
+        }
+    }
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /** CRC32C of the chunk; {@code key} may be null for content that is not cached. */
+    public long crc(Key key, ByteBuffer data) {
+        synchronized (this) {
+            Entry entry = lookup(key);
+            if (entry != null && entry.crc >= 0) {
+                hits++;
+                return entry.crc;
+            }
+            misses++;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        long value = crc.getValue();
+        synchronized (this) {
+            Entry entry = entryFor(key);
+            if (entry != null) {
+                entry.crc = value;
+            }
+        }
+        return value;
+    }
+
+    /** The chunk deflated, or null if that does not make it smaller. */
+    public byte[] deflated(Key key, ByteBuffer data) {
+        synchronized (this) {
+            Entry entry = lookup(key);
+            if (entry != null && entry.deflateTried) {
+                hits++;
+                return entry.deflated;
+            }
+            misses++;
+        }
+        byte[] deflated = PayloadCodec.deflate(data);
+        synchronized (this) {
+            Entry entry = entryFor(key);
+            if (entry != null && !entry.deflateTried) {
+                bytes -= entry.bytes();
+                entry.deflateTried = true;
+                entry.deflated = deflated;
+                bytes += entry.bytes();
+                evict();
+            }
+        }
+        return deflated;
+    }
+
+    public synchronized String summary() {
+        return String.format("chunk cache %d hits, %d misses, %d KB", hits, misses, bytes / 1024);
+    }
+
+    // Caller holds this
+    private Entry lookup(Key key) {
+        return key == null || MAX_BYTES <= 0 ? null : entries.get(key);
+    }
+
+    // Caller holds this
+    private Entry entryFor(Key key) {
+        if (key == null || MAX_BYTES <= 0) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+            bytes += entry.bytes();
+            evict();
+        }
+        return entry;
+    }
+
+    // Caller holds this
+    private void evict() {
+        var eldest = entries.entrySet().iterator();
+        while (bytes > MAX_BYTES && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().bytes();
+            eldest.remove();
+        }
+    }
+}
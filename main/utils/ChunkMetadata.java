@@ -3,10 +3,10 @@ package main.utils;
 import java.net.InetAddress;
 
 public class ChunkMetadata {
+    public final OutgoingTransfer transfer;
     public final String fileId;
     public final int chunkIndex;
     public final String messageId;
-    public final String base64Data;
     public final int totalChunks;
     public final int chunkSize;
     public final InetAddress recipientAddress;
@@ -14,22 +14,23 @@ public class ChunkMetadata {
     public final String toUserId;
 
     public int retryCount = 0;
-    public long lastSentTime;
+    public long lastSentNanos;
+    // Send sequence of the latest transmission, assigned by the transfer's window
+    public volatile long sendSeq = -1;
 
     public volatile boolean acknowledged = false;
 
-    public ChunkMetadata(String fileId, int chunkIndex, String messageId,
-            String base64Data, int totalChunks, int chunkSize,
-            InetAddress recipientAddress, int recipientPort, String toUserId) {
-        this.fileId = fileId;
+    // Chunk bytes are re-read from the transfer's source for every (re)transmission rather than kept here
+    public ChunkMetadata(OutgoingTransfer transfer, int chunkIndex, String messageId) {
+        this.transfer = transfer;
+        this.fileId = transfer.fileId;
         this.chunkIndex = chunkIndex;
         this.messageId = messageId;
-        this.base64Data = base64Data;
-        this.totalChunks = totalChunks;
-        this.chunkSize = chunkSize;
-        this.recipientAddress = recipientAddress;
-        this.recipientPort = recipientPort;
-        this.toUserId = toUserId;
-        this.lastSentTime = System.currentTimeMillis();
+        this.totalChunks = transfer.source.totalChunks();
+        this.chunkSize = transfer.source.chunkLength(chunkIndex);
+        this.recipientAddress = transfer.recipientAddress;
+        this.recipientPort = transfer.recipientPort;
+        this.toUserId = transfer.toUserId;
+        this.lastSentNanos = System.nanoTime();
     }
-}
\ No newline at end of file
+}
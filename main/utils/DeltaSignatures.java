@@ -0,0 +1,172 @@
+package main.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Block signatures of a file being sent, for a receiver that already holds an older version of it.
+ * Each chunk is described by a weak rolling checksum (rsync's) and the first 8 bytes of its SHA-256.
+ * The receiver slides a chunk-sized window over its old copy one byte at a time. Wherever the weak
+ * checksum matches a missing chunk and the strong hash confirms it, the chunk is copied locally
+ * instead of being sent, however far it moved in the new version. Guarded by this.
+ */
+public final class DeltaSignatures {
+    /** Peer sends FILE_SIGNATURE in answer to FILE_BASIS and takes FILE_BASIS for files it offers. */
+    public static final String CAPABILITY = "DELTA";
+    /** Bytes of one chunk's signature on the wire: weak checksum, then strong hash. */
+    public static final int BYTES = Integer.BYTES + Long.BYTES;
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("lsnp.delta", "true"));
+
+    /** Takes a chunk found in the old copy; {@code data} is only valid during the call. */
+    public interface Sink {
+        void accept(int chunkIndex, ByteBuffer data) throws IOException;
+    }
+
+    public final int chunkSize;
+    public final int totalChunks;
+    private final int[] weak;
+    private final long[] strong;
+    private final BitSet known = new BitSet();
+    // Chunks by weak checksum; chunks with the same content share one
+    private final Map<Integer, List<Integer>> byWeak = new HashMap<>();
+
+    public DeltaSignatures(int chunkSize, int totalChunks) {
+        this.chunkSize = chunkSize;
+        this.totalChunks = totalChunks;
+        this.weak = new int[totalChunks];
+        this.strong = new long[totalChunks];
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** rsync's weak checksum: the byte sum and the position-weighted byte sum, 16 bits each. */
+    public static int weak(ByteBuffer data) {
+        int length = data.remaining();
+        int base = data.position();
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data.get(base + i) & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    public static long strong(MessageDigest digest, ByteBuffer data) {
+        digest.reset();
+        digest.update(data.duplicate());
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /** Appends the signature of one chunk to {@code out}. */
+    public static void sign(MessageDigest digest, ByteBuffer chunk, ByteBuffer out) {
+        out.putInt(weak(chunk)).putLong(strong(digest, chunk));
+    }
+
+    /**
+     * Takes the signatures of chunks {@code [first, first + count)} from a FILE_SIGNATURE.
+     *
+     * @throws IllegalArgumentException if they do not fit the file
+     */
+    public synchronized void add(int first, int count, ByteBuffer data) {
+        if (count < 1 || first < 0 || first > totalChunks - count || data.remaining() < count * BYTES) {
+            throw new IllegalArgumentException("Signatures " + first + "+" + count + " out of range");
+        }
+        ByteBuffer in = data.duplicate();
+        for (int i = first; i < first + count; i++) {
+            weak[i] = in.getInt();
+            strong[i] = in.getLong();
+            if (!known.get(i)) {
+                known.set(i);
+                byWeak.computeIfAbsent(weak[i], k -> new ArrayList<>(1)).add(i);
+            }
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return known.cardinality() == totalChunks;
+    }
+
+    public synchronized int knownCount() {
+        return known.cardinality();
+    }
+
+    /**
+     * Slides over {@code basis} and passes every chunk in {@code wanted} found there to {@code sink},
+     * clearing it from {@code wanted}. After a match the window skips past the matched bytes, as
+     * rsync does. A short last chunk is never found, since the window is always a full chunk.
+     * Returns how many chunks were found.
+     */
+    public synchronized int scan(ByteBuffer basis, BitSet wanted, Sink sink) throws IOException {
+        int n = chunkSize;
+        int length = basis.remaining();
+        int base = basis.position();
+        if (n <= 0 || length < n || byWeak.isEmpty()) {
+            return 0;
+        }
+        MessageDigest digest = newDigest();
+        int found = 0;
+        int pos = 0;
+        int checksum = weak(basis.slice(base, n));
+        int a = checksum & 0xffff;
+        int b = checksum >>> 16;
+        while (true) {
+            boolean matched = false;
+            List<Integer> candidates = byWeak.get((a & 0xffff) | (b << 16));
+            if (candidates != null) {
+                ByteBuffer window = basis.slice(base + pos, n);
+                long hash = 0;
+                boolean hashed = false;
+                for (int index : candidates) {
+                    if (!wanted.get(index)) {
+                        continue;
+                    }
+                    if (!hashed) {
+                        hash = strong(digest, window);
+                        hashed = true;
+                    }
+                    if (hash == strong[index]) {
+                        sink.accept(index, window.duplicate());
+                        wanted.clear(index);
+                        found++;
+                        matched = true;
+                    }
+                }
+            }
+            if (matched) {
+                pos += n;
+                if (pos + n > length) {
+                    break;
+                }
+                checksum = weak(basis.slice(base + pos, n));
+                a = checksum & 0xffff;
+                b = checksum >>> 16;
+                continue;
+            }
+            if (pos + n >= length) {
+                break;
+            }
+            int out = basis.get(base + pos) & 0xff;
+            int in = basis.get(base + pos + n) & 0xff;
+            a = (a - out + in) & 0xffff;
+            b = (b - n * out + a) & 0xffff;
+            pos++;
+        }
+        return found;
+    }
+}
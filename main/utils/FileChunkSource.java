@@ -0,0 +1,202 @@
+package main.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read-only, chunked view of a file being sent. The file is memory-mapped in windows of about
+ * 64 MB that are mapped on first use, so the heap never holds more than the chunk being
+ * encoded and files larger than 2 GB work. A window always holds whole chunks, and only the
+ * most recently used windows stay referenced.
+ *
+ * <p>The source closes itself once every chunk has been {@link #settle() settled} (acknowledged
+ * or given up on) and {@link #finishSending()} has been called.
+ */
+public final class FileChunkSource implements Closeable {
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_MAPPED_WINDOWS = 4;
+    private static final int HASH_BUFFER_BYTES = 1024 * 1024;
+    // SHA-256 of recently sent files by path, size and modification time, so sending a file again
+    // or to several peers reads it once
+    private static final int MAX_CACHED_HASHES = 64;
+    private static final Map<String, String> hashes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_HASHES;
+        }
+    };
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long size;
+    private final long modifiedMillis;
+    private final int chunkSize;
+    private final int totalChunks;
+    private final long windowBytes;
+    // Deleted once closed, e.g. a packed folder
+    private final boolean temporary;
+    private final AtomicInteger unsettled;
+    private volatile boolean sending = true;
+    private boolean closed = false;
+
+    private final Map<Long, MappedByteBuffer> windows = new LinkedHashMap<>(MAX_MAPPED_WINDOWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            return size() > MAX_MAPPED_WINDOWS;
+        }
+    };
+
+    public FileChunkSource(Path path, int chunkSize) throws IOException {
+        this(path, chunkSize, false);
+    }
+
+    public FileChunkSource(Path path, int chunkSize, boolean temporary) throws IOException {
+        this.path = path;
+        this.temporary = temporary;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.modifiedMillis = Files.getLastModifiedTime(path).toMillis();
+        this.chunkSize = chunkSize;
+        long chunks = (size + chunkSize - 1) / chunkSize;
+        if (chunks > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("File too large for " + chunkSize + "-byte chunks: " + path);
+        }
+        this.totalChunks = (int) chunks;
+        this.windowBytes = Math.max(1, WINDOW_BYTES / chunkSize) * chunkSize;
+        this.unsettled = new AtomicInteger(totalChunks);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int totalChunks() {
+        return totalChunks;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public int chunkLength(int index) {
+        return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    /**
+     * Read-only view of chunk {@code index} straight from the mapping.
+     *
+     * @throws UncheckedIOException if the window cannot be mapped or the source is closed
+     */
+    public ByteBuffer chunk(int index) {
+        long offset = (long) index * chunkSize;
+        long window = offset / windowBytes;
+        MappedByteBuffer mapped = window(window);
+        return mapped.slice((int) (offset - window * windowBytes), chunkLength(index)).asReadOnlyBuffer();
+    }
+
+    private synchronized MappedByteBuffer window(long window) {
+        MappedByteBuffer mapped = windows.get(window);
+        if (mapped == null) {
+            if (closed) {
+                throw new UncheckedIOException(new IOException("Chunk source closed: " + path));
+            }
+            long start = window * windowBytes;
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowBytes, size - start));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            windows.put(window, mapped);
+        }
+        return mapped;
+    }
+
+    /** Marks one chunk as done with; closes the source once the last one is and sending has finished. */
+    public void settle() {
+        if (unsettled.decrementAndGet() <= 0 && !sending) {
+            close();
+        }
+    }
+
+    /** A settled chunk must be sent again, e.g. because a restarted receiver lost it. */
+    public void unsettle() {
+        unsettled.incrementAndGet();
+    }
+
+    /** Called once every chunk has been handed to the socket for the first time. */
+    public void finishSending() {
+        sending = false;
+        if (unsettled.get() <= 0) {
+            close();
+        }
+    }
+
+    /**
+     * Hex SHA-256 of the whole file, read with positional reads so the chunk windows stay mapped.
+     * Remembered while the file's size and modification time stay the same.
+     */
+    public String sha256() throws IOException {
+        String key = path.toAbsolutePath().normalize() + "|" + size + "|" + modifiedMillis;
+        synchronized (hashes) {
+            String known = hashes.get(key);
+            if (known != null) {
+                return known;
+            }
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_BYTES);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File shrank while hashing: " + path);
+            }
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
+        }
+        String hash = HexFormat.of().formatHex(digest.digest());
+        synchronized (hashes) {
+            hashes.put(key, hash);
+        }
+        return hash;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        windows.clear();
+        try {
+            channel.close();
+            if (temporary) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            VerboseLogger.log("Failed to close {}: {}", path, e.getMessage());
+        }
+        VerboseLogger.log("Closed chunk source for {}", path);
+    }
+}
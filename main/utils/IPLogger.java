@@ -27,13 +27,13 @@ public class IPLogger {
 
         if (knownIP == null) {
             ipMap.put(userId, normalizedActualIP); // first time seen, trust and log
-            VerboseLogger.log("Logged IP for user " + userId + ": " + normalizedActualIP);
+            VerboseLogger.log("Logged IP for user {}: {}", userId, normalizedActualIP);
             return true;
         }
 
         boolean matches = knownIP.equals(normalizedActualIP);
         if (!matches) {
-            VerboseLogger.drop("IP mismatch for user " + userId + ": expected " + knownIP + ", got " + actualIP);
+            VerboseLogger.drop("IP mismatch for user {}: expected {}, got {}", userId, knownIP, actualIP);
         }
         return matches;
     }
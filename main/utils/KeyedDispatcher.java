@@ -0,0 +1,100 @@
+package main.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on virtual threads while keeping submission order per key.
+ * Tasks with the same key run one after another; tasks with different keys run
+ * in parallel, so a handler that blocks only holds up its own key.
+ */
+public class KeyedDispatcher {
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final int maxQueuedPerKey;
+
+    public KeyedDispatcher(int maxQueuedPerKey) {
+        this.maxQueuedPerKey = maxQueuedPerKey;
+    }
+
+    private final class Lane implements Runnable {
+        final String key;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        boolean running = false; // guarded by the map entry for this key
+
+        Lane(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    // Retire under the map lock so a concurrent dispatch either lands in this
+                    // queue before we look, or creates a fresh lane after we are gone.
+                    if (lanes.computeIfPresent(key, (k, lane) -> retireIfIdle(lane)) == null) {
+                        return;
+                    }
+                    continue;
+                }
+                queued.decrementAndGet();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    System.err.println("Dispatch error on " + key + ": " + t.getMessage());
+                    t.printStackTrace();
+                }
+            }
+        }
+
+        private Lane retireIfIdle(Lane lane) {
+            if (lane != this || !tasks.isEmpty()) {
+                return lane;
+            }
+            running = false;
+            return null;
+        }
+    }
+
+    /**
+     * Queues a task behind earlier tasks with the same key.
+     *
+     * @return false if the key already has too many queued tasks and the task was dropped.
+     */
+    public boolean dispatch(String key, Runnable task) {
+        // [0] = accepted, [1] = this call must start the lane
+        boolean[] outcome = new boolean[2];
+        Lane lane = lanes.compute(key, (k, existing) -> {
+            Lane l = existing != null ? existing : new Lane(k);
+            if (l.queued.get() < maxQueuedPerKey) {
+                l.queued.incrementAndGet();
+                l.tasks.add(task);
+                outcome[0] = true;
+                if (!l.running) {
+                    l.running = true;
+                    outcome[1] = true;
+                }
+            }
+            return l;
+        });
+
+        if (outcome[1]) {
+            executor.execute(lane);
+        }
+        return outcome[0];
+    }
+
+    public int activeKeys() {
+        return lanes.size();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,19 @@
+package main.utils;
+
+/** Kinds of verbose output, each of which can be switched on or off on its own. */
+public enum LogCategory {
+    LOG("LOG >"),
+    SEND("SEND >"),
+    RECV("RECV <"),
+    DROP("DROP !"),
+    ACK("ACK ✔"),
+    TOKEN("TOKEN ?"),
+    RETRY("RETRY ~");
+
+    final String label;
+    final int bit = 1 << ordinal();
+
+    LogCategory(String label) {
+        this.label = label;
+    }
+}
@@ -0,0 +1,99 @@
+package main.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Well-known LSNP header keys. The byte parser matches keys against these directly
+ * from the datagram so known fields never need a key String.
+ * LSNP-B uses {@code ordinal() + 1} as the field tag, so new keys must only be appended.
+ */
+public enum LsnpField {
+    TYPE, FROM, TO, USER_ID, MESSAGE_ID, TOKEN, TIMESTAMP, STATUS, DATA, CONTENT,
+    DISPLAY_NAME, TTL, PORT, FROM_PORT,
+    FILEID, FILENAME, FILESIZE, FILETYPE, DESCRIPTION, CHUNK_INDEX, TOTAL_CHUNKS, CHUNK_SIZE,
+    GROUP_ID, GROUP_NAME, MEMBERS, ADD, REMOVE,
+    GAMEID, POSITION, SYMBOL, RESULT,
+    LIKED_MESSAGE_ID, TOKEN_TO_REVOKE, CAPABILITIES, ENCODING, CUMULATIVE, SACK, FILEHASH, HAVE,
+    CRC, NACK, BLOCK, REPAIRED, PEERS, WANT, FILECOUNT;
+
+    private static final LsnpField[] VALUES = values();
+    private static final int MAX_KEY_LENGTH;
+    private static final LsnpField[][] BY_LENGTH;
+    private static final Map<String, LsnpField> BY_NAME = new HashMap<>();
+
+    static {
+        int max = 0;
+        for (LsnpField f : VALUES) {
+            max = Math.max(max, f.name().length());
+            BY_NAME.put(f.name(), f);
+        }
+        MAX_KEY_LENGTH = max;
+        BY_LENGTH = new LsnpField[max + 1][];
+        for (int len = 0; len <= max; len++) {
+            int count = 0;
+            for (LsnpField f : VALUES) {
+                if (f.name().length() == len) count++;
+            }
+            BY_LENGTH[len] = new LsnpField[count];
+            int i = 0;
+            for (LsnpField f : VALUES) {
+                if (f.name().length() == len) BY_LENGTH[len][i++] = f;
+            }
+        }
+    }
+
+    private final byte[] key = name().getBytes(StandardCharsets.US_ASCII);
+
+    public byte[] keyBytes() {
+        return key;
+    }
+
+    /** Fields carried as raw bytes in LSNP-B and as base64 in text messages. */
+    public boolean isBinary() {
+        return this == DATA;
+    }
+
+    /** Fields that may be sent deflated, as flagged by {@code ENCODING: deflate-d1}. */
+    public boolean isCompressible() {
+        return this == DATA || this == CONTENT;
+    }
+
+    /** Case-insensitive match of {@code buf[start, end)} against the known keys, or null. */
+    public static LsnpField match(ByteBuffer buf, int start, int end) {
+        int length = end - start;
+        if (length <= 0 || length > MAX_KEY_LENGTH) {
+            return null;
+        }
+        for (LsnpField candidate : BY_LENGTH[length]) {
+            byte[] k = candidate.key;
+            int i = 0;
+            while (i < length && toUpper(buf.get(start + i)) == k[i]) {
+                i++;
+            }
+            if (i == length) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /** Known field for an upper-case key String, or null. */
+    public static LsnpField of(String key) {
+        return BY_NAME.get(key);
+    }
+
+    static byte toUpper(byte b) {
+        return (b >= 'a' && b <= 'z') ? (byte) (b - 32) : b;
+    }
+
+    public static int count() {
+        return VALUES.length;
+    }
+
+    public static LsnpField byOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
@@ -0,0 +1,465 @@
+package main.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Parsed view over the raw bytes of an LSNP message, text or LSNP-B. Lines (or binary fields)
+ * are indexed lazily: a lookup only scans as far as the requested key, and only records where
+ * keys and values sit in the buffer. Value Strings are decoded the first time they are asked for. If a key repeats, the
+ * first occurrence wins, so a value never changes once it has been read.
+ * The view reads the buffer lazily, so it must not be used after the underlying datagram
+ * has been released.
+ */
+public class LsnpMessage {
+    private static final int ENTRY_INTS = 5; // field ordinal (-1 if unknown), key start/end, value start/end
+
+    private final ByteBuffer buf;
+    private final int limit;
+    private final boolean binary;
+    private int scanPos;
+    private final int[] fieldEntry = new int[LsnpField.count()];
+    private int[] entries = new int[ENTRY_INTS * 8];
+    private String[] values = new String[8];
+    private int entryCount = 0;
+    private Map<String, String> mapView;
+
+    LsnpMessage(ByteBuffer buf) {
+        this.buf = buf;
+        this.limit = buf.limit();
+        this.scanPos = buf.position();
+        this.binary = WireFormat.detect(buf) == WireFormat.BINARY;
+        Arrays.fill(fieldEntry, -1);
+        if (binary) {
+            if (limit - scanPos < 2 || buf.get(scanPos + 1) != WireFormat.BINARY_VERSION) {
+                VerboseLogger.log("Unsupported LSNP-B message, ignoring its fields");
+                scanPos = limit;
+            } else {
+                scanPos += 2;
+            }
+        }
+    }
+
+    public WireFormat format() {
+        return binary ? WireFormat.BINARY : WireFormat.TEXT;
+    }
+
+    private boolean indexNextLine() {
+        if (scanPos >= limit) {
+            return false;
+        }
+        if (binary) {
+            return indexNextField();
+        }
+        int lineEnd = scanPos;
+        while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+            lineEnd++;
+        }
+        indexLine(scanPos, lineEnd);
+        scanPos = lineEnd + 1;
+        return true;
+    }
+
+    private void indexAll() {
+        while (indexNextLine()) {
+            // keep scanning
+        }
+    }
+
+    /**
+     * Indexes until {@code first} or {@code second} has been seen, or the message ends, and returns
+     * whether either was. Used for the sender, which is FROM in some messages and USER_ID in
+     * others; a single field is reached with {@link #has}. Nothing past it is scanned.
+     */
+    public boolean indexUntil(LsnpField first, LsnpField second) {
+        while (!has0(first) && !has0(second)) {
+            if (!indexNextLine()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Value of {@code field} if it has been indexed already; never scans further. */
+    public String peek(LsnpField field) {
+        int entry = fieldEntry[field.ordinal()];
+        return entry < 0 ? null : valueAt(entry);
+    }
+
+    private boolean has0(LsnpField field) {
+        return fieldEntry[field.ordinal()] >= 0;
+    }
+
+    private void indexLine(int start, int end) {
+        int colon = start;
+        while (colon < end && buf.get(colon) != ':') {
+            colon++;
+        }
+        if (colon == end) {
+            if (VerboseLogger.isEnabled(LogCategory.LOG) && trimStart(start, end) < trimEnd(start, end)) {
+                VerboseLogger.log("Invalid message line (missing colon): {}", decode(start, end));
+            }
+            return;
+        }
+
+        int ks = trimStart(start, colon);
+        int ke = trimEnd(ks, colon);
+        int vs = trimStart(colon + 1, end);
+        int ve = trimEnd(vs, end);
+        if (ks == ke || vs == ve) {
+            if (VerboseLogger.isEnabled(LogCategory.LOG)) {
+                VerboseLogger.log("Empty key or value in message line: {}", decode(start, end));
+            }
+            return;
+        }
+
+        LsnpField field = LsnpField.match(buf, ks, ke);
+        int existing = field != null ? fieldEntry[field.ordinal()] : findUnknown(ks, ke);
+        if (existing >= 0) {
+            if (VerboseLogger.isEnabled(LogCategory.LOG)) {
+                VerboseLogger.log("Ignoring repeated field in message line: {}", decode(start, end));
+            }
+            return;
+        }
+        int entry = addEntry();
+        if (field != null) {
+            fieldEntry[field.ordinal()] = entry;
+        }
+        int base = entry * ENTRY_INTS;
+        entries[base] = field != null ? field.ordinal() : -1;
+        entries[base + 1] = ks;
+        entries[base + 2] = ke;
+        entries[base + 3] = vs;
+        entries[base + 4] = ve;
+
+        if (VerboseLogger.isEnabled(LogCategory.LOG)) {
+            VerboseLogger.log("Parsed message field: {} = {}", keyAt(entry), decode(vs, ve));
+        }
+    }
+
+    private boolean indexNextField() {
+        int tag = readVarint();
+        int ks = 0;
+        int ke = 0;
+        if (tag == 0) {
+            int keyLength = readVarint();
+            if (keyLength <= 0 || keyLength > limit - scanPos) {
+                return truncated();
+            }
+            ks = scanPos;
+            ke = scanPos + keyLength;
+            scanPos = ke;
+        } else if (tag < 0 || tag > LsnpField.count()) {
+            return truncated();
+        }
+        int length = readVarint();
+        if (length < 0 || length > limit - scanPos) {
+            return truncated();
+        }
+        int vs = scanPos;
+        scanPos += length;
+
+        LsnpField field = tag > 0 ? LsnpField.byOrdinal(tag - 1) : LsnpField.match(buf, ks, ke);
+        int existing = field != null ? fieldEntry[field.ordinal()] : findUnknown(ks, ke);
+        if (existing >= 0 || length == 0) {
+            return true;
+        }
+        int entry = addEntry();
+        if (field != null) {
+            fieldEntry[field.ordinal()] = entry;
+        }
+        int base = entry * ENTRY_INTS;
+        entries[base] = field != null ? field.ordinal() : -1;
+        entries[base + 1] = ks;
+        entries[base + 2] = ke;
+        entries[base + 3] = vs;
+        entries[base + 4] = vs + length;
+        return true;
+    }
+
+    // Unsigned LEB128, at most five bytes; -1 if malformed or cut short.
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 35 && scanPos < limit; shift += 7) {
+            byte b = buf.get(scanPos++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private boolean truncated() {
+        VerboseLogger.log("Malformed LSNP-B field at offset {}, ignoring the rest", scanPos);
+        scanPos = limit;
+        return false;
+    }
+
+    private int addEntry() {
+        if ((entryCount + 1) * ENTRY_INTS > entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        return entryCount++;
+    }
+
+    private int findUnknown(int ks, int ke) {
+        for (int e = 0; e < entryCount; e++) {
+            int base = e * ENTRY_INTS;
+            if (entries[base] == -1 && sameKey(entries[base + 1], entries[base + 2], ks, ke)) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    private boolean sameKey(int as, int ae, int bs, int be) {
+        if (ae - as != be - bs) {
+            return false;
+        }
+        for (int i = 0; i < ae - as; i++) {
+            if (LsnpField.toUpper(buf.get(as + i)) != LsnpField.toUpper(buf.get(bs + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && (buf.get(from) & 0xff) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && (buf.get(to - 1) & 0xff) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String keyAt(int entry) {
+        int base = entry * ENTRY_INTS;
+        int ordinal = entries[base];
+        if (ordinal >= 0) {
+            return LsnpField.byOrdinal(ordinal).name();
+        }
+        return decode(entries[base + 1], entries[base + 2]).toUpperCase();
+    }
+
+    private String valueAt(int entry) {
+        String value = values[entry];
+        if (value == null) {
+            int base = entry * ENTRY_INTS;
+            LsnpField field = entries[base] >= 0 ? LsnpField.byOrdinal(entries[base]) : null;
+            if (field != null && field.isCompressible() && isDeflated()) {
+                byte[] plain = PayloadCodec.inflate(encodedBytes(entry));
+                value = field.isBinary()
+                        ? Base64.getEncoder().encodeToString(plain)
+                        : new String(plain, StandardCharsets.UTF_8);
+            } else if (binary && field != null && field.isBinary()) {
+                // Text callers see binary fields as base64, the same as a text message carries them
+                value = Base64.getEncoder().encodeToString(rawAt(entry));
+            } else {
+                value = decode(entries[base + 3], entries[base + 4]);
+            }
+            values[entry] = value;
+        }
+        return value;
+    }
+
+    private boolean isDeflated() {
+        return valueEquals(LsnpField.ENCODING, PayloadCodec.DEFLATE)
+                || valueEquals(LsnpField.ENCODING, PayloadCodec.DEFLATE_PLAIN);
+    }
+
+    private byte[] rawAt(int entry) {
+        int base = entry * ENTRY_INTS;
+        byte[] bytes = new byte[entries[base + 4] - entries[base + 3]];
+        buf.get(entries[base + 3], bytes);
+        return bytes;
+    }
+
+    // Bytes of a value as sent: raw in LSNP-B, base64-decoded straight from the buffer in text.
+    private byte[] encodedBytes(int entry) {
+        if (binary) {
+            return rawAt(entry);
+        }
+        int base = entry * ENTRY_INTS;
+        ByteBuffer encoded = buf.duplicate().limit(entries[base + 4]).position(entries[base + 3]);
+        ByteBuffer decoded = Base64.getDecoder().decode(encoded);
+        byte[] bytes = new byte[decoded.remaining()];
+        decoded.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decoded bytes of a binary field such as DATA: copied as-is from an LSNP-B message, or
+     * base64-decoded straight from the buffer of a text one, and inflated if the message says
+     * {@code ENCODING: deflate-d1} (or plain {@code deflate}). Null if the field is missing.
+     *
+     * @throws IllegalArgumentException if the value is not valid base64 or deflate data
+     */
+    public byte[] getBytes(LsnpField field) {
+        int entry = find(field);
+        if (entry < 0) {
+            return null;
+        }
+        byte[] bytes = encodedBytes(entry);
+        return field.isCompressible() && isDeflated() ? PayloadCodec.inflate(bytes) : bytes;
+    }
+
+    public boolean has(LsnpField field) {
+        return find(field) >= 0;
+    }
+
+    public String get(LsnpField field) {
+        int entry = find(field);
+        return entry < 0 ? null : valueAt(entry);
+    }
+
+    private int find(LsnpField field) {
+        int entry = fieldEntry[field.ordinal()];
+        while (entry < 0 && indexNextLine()) {
+            entry = fieldEntry[field.ordinal()];
+        }
+        return entry;
+    }
+
+    /** Looks up any key, known or not. Keys are matched upper-case, like the map parser. */
+    public String get(String key) {
+        LsnpField field = LsnpField.of(key);
+        if (field != null) {
+            return get(field);
+        }
+        indexAll();
+        for (int e = 0; e < entryCount; e++) {
+            if (entries[e * ENTRY_INTS] == -1 && keyAt(e).equals(key)) {
+                return valueAt(e);
+            }
+        }
+        return null;
+    }
+
+    /** Returns true if {@code field} is present and its value equals {@code expected}, without decoding it. */
+    public boolean valueEquals(LsnpField field, String expected) {
+        int entry = find(field);
+        if (entry < 0) {
+            return false;
+        }
+        int base = entry * ENTRY_INTS;
+        int vs = entries[base + 3];
+        int length = entries[base + 4] - vs;
+        if (length != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf.get(vs + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Like {@link #getBytes(LsnpField)}, but an uncompressed LSNP-B value is returned as a
+     * read-only view of the datagram buffer instead of a copy. The view is only valid until
+     * the datagram is released.
+     */
+    public ByteBuffer getByteBuffer(LsnpField field) {
+        int entry = find(field);
+        if (entry < 0) {
+            return null;
+        }
+        if (binary && !(field.isCompressible() && isDeflated())) {
+            int base = entry * ENTRY_INTS;
+            return buf.asReadOnlyBuffer().limit(entries[base + 4]).position(entries[base + 3]);
+        }
+        return ByteBuffer.wrap(getBytes(field));
+    }
+
+    public int size() {
+        indexAll();
+        return entryCount;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Read-only {@code Map<String, String>} view for handlers written against the map parser.
+     * Lookups go through the field index, so values are still decoded on demand.
+     */
+    public Map<String, String> asMap() {
+        if (mapView == null) {
+            mapView = new MapView();
+        }
+        return mapView;
+    }
+
+    private final class MapView extends AbstractMap<String, String> {
+        @Override
+        public String get(Object key) {
+            return key instanceof String k ? LsnpMessage.this.get(k) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return LsnpMessage.this.size();
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            indexAll();
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < entryCount;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (next >= entryCount) {
+                                throw new NoSuchElementException();
+                            }
+                            int e = next++;
+                            return new SimpleImmutableEntry<>(keyAt(e), valueAt(e));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return entryCount;
+                }
+            };
+        }
+    }
+}
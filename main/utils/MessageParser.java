@@ -1,9 +1,18 @@
 package main.utils;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class MessageParser {
+    /**
+     * Wraps a text message's UTF-8 bytes in a lazy view; nothing is scanned until a field is
+     * asked for. Use {@link LsnpMessage#asMap()} where a {@code Map<String, String>} is expected.
+     */
+    public static LsnpMessage parse(ByteBuffer payload) {
+        return new LsnpMessage(payload);
+    }
+
     public static Map<String, String> parse(String rawMessage) {
         Map<String, String> map = new LinkedHashMap<>();
 
@@ -23,7 +32,7 @@ public class MessageParser {
     private static void parseLine(String line, Map<String, String> map) {
         int colonIndex = line.indexOf(':');
         if (colonIndex == -1) {
-            VerboseLogger.log("Invalid message line (missing colon): " + line);
+            VerboseLogger.log("Invalid message line (missing colon): {}", line);
             return;
         }
         
@@ -31,12 +40,12 @@ public class MessageParser {
         String value = line.substring(colonIndex + 1).trim();
         
         if (key.isEmpty() || value.isEmpty()) {
-            VerboseLogger.log("Empty key or value in message line: " + line);
+            VerboseLogger.log("Empty key or value in message line: {}", line);
             return;
         }
         
         map.put(key, value);
-        VerboseLogger.log("Parsed message field: " + key + " = " + value);
+        VerboseLogger.log("Parsed message field: {} = {}", key, value);
     }
 
     public static String serialize(Map<String, String> message) {
@@ -0,0 +1,98 @@
+package main.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pre-encoded header for messages that repeat the same fields (TYPE, FROM, TO, TOKEN, ...)
+ * for a whole session. The header is encoded once in each wire format; each message starts
+ * from a copy of those bytes in a pooled buffer and only appends the fields that change.
+ */
+public final class MessageTemplate {
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    private static final BufferPool OUTPUT_POOL = new BufferPool(MAX_MESSAGE_SIZE, 256, false);
+
+    private final byte[] textPrefix;
+    private final byte[] binaryPrefix;
+    private final long createdAtMillis = System.currentTimeMillis();
+
+    private MessageTemplate(byte[] textPrefix, byte[] binaryPrefix) {
+        this.textPrefix = textPrefix;
+        this.binaryPrefix = binaryPrefix;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** Starts a text message in a pooled buffer with the cached header already written. */
+    public MessageWriter newMessage() {
+        return newMessage(WireFormat.TEXT);
+    }
+
+    public MessageWriter newMessage(WireFormat format) {
+        byte[] prefix = format == WireFormat.BINARY ? binaryPrefix : textPrefix;
+        return new MessageWriter(OUTPUT_POOL.acquire(), OUTPUT_POOL, format).putRaw(prefix);
+    }
+
+    /** Starts a message with no cached header, for one-off messages. */
+    public static MessageWriter blankMessage() {
+        return blankMessage(WireFormat.TEXT);
+    }
+
+    public static MessageWriter blankMessage(WireFormat format) {
+        MessageWriter writer = new MessageWriter(OUTPUT_POOL.acquire(), OUTPUT_POOL, format);
+        return format == WireFormat.BINARY
+                ? writer.putRaw(new byte[] {WireFormat.BINARY_MAGIC, WireFormat.BINARY_VERSION})
+                : writer;
+    }
+
+    public long ageMillis() {
+        return System.currentTimeMillis() - createdAtMillis;
+    }
+
+    public static final class Builder {
+        private final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+
+        private Builder() {
+            binary.write(WireFormat.BINARY_MAGIC);
+            binary.write(WireFormat.BINARY_VERSION);
+        }
+
+        public Builder field(LsnpField field, Object value) {
+            return field(field.name(), value);
+        }
+
+        public Builder field(String key, Object value) {
+            String valueText = String.valueOf(value);
+            text.writeBytes((key + ": " + valueText + "\n").getBytes(StandardCharsets.UTF_8));
+
+            LsnpField known = LsnpField.of(key);
+            if (known != null) {
+                writeVarint(known.ordinal() + 1);
+            } else {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                writeVarint(0);
+                writeVarint(keyBytes.length);
+                binary.writeBytes(keyBytes);
+            }
+            byte[] valueBytes = valueText.getBytes(StandardCharsets.UTF_8);
+            writeVarint(valueBytes.length);
+            binary.writeBytes(valueBytes);
+            return this;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                binary.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            binary.write(value);
+        }
+
+        public MessageTemplate build() {
+            return new MessageTemplate(text.toByteArray(), binary.toByteArray());
+        }
+    }
+}
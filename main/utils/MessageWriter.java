@@ -0,0 +1,242 @@
+package main.utils;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes one message into a pooled buffer without building intermediate Strings, either as
+ * text lines or as LSNP-B fields. Call {@link #finish()} to get the bytes to send and
+ * {@link #release()} once the send has completed. Fields that run past the end of the buffer
+ * are not written; {@link #finish()} then releases the buffer and throws.
+ */
+public final class MessageWriter {
+    private static final byte[] SEPARATOR = {':', ' '};
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+    private final ByteBuffer out;
+    private final BufferPool pool;
+    private final boolean binary;
+    private boolean released = false;
+    private boolean tooLarge = false;
+
+    MessageWriter(ByteBuffer out, BufferPool pool, WireFormat format) {
+        this.out = out;
+        this.pool = pool;
+        this.binary = format == WireFormat.BINARY;
+    }
+
+    MessageWriter putRaw(byte[] bytes) {
+        if (fits(bytes.length)) {
+            out.put(bytes);
+        }
+        return this;
+    }
+
+    // Marks the message too large when fewer than bytes are left
+    private boolean fits(int bytes) {
+        if (!tooLarge && out.remaining() < bytes) {
+            tooLarge = true;
+        }
+        return !tooLarge;
+    }
+
+    public WireFormat format() {
+        return binary ? WireFormat.BINARY : WireFormat.TEXT;
+    }
+
+    private void key(LsnpField field) {
+        if (binary) {
+            putVarint(field.ordinal() + 1);
+        } else {
+            out.put(field.keyBytes());
+            out.put(SEPARATOR);
+        }
+    }
+
+    private void endField() {
+        if (!binary) {
+            out.put((byte) '\n');
+        }
+    }
+
+    public MessageWriter put(LsnpField field, String value) {
+        if (fits(0)) {
+            try {
+                key(field);
+                putText(value);
+                endField();
+            } catch (BufferOverflowException e) {
+                tooLarge = true;
+            }
+        }
+        return this;
+    }
+
+    public MessageWriter put(LsnpField field, long value) {
+        if (fits(0)) {
+            try {
+                key(field);
+                putDecimal(value);
+                endField();
+            } catch (BufferOverflowException e) {
+                tooLarge = true;
+            }
+        }
+        return this;
+    }
+
+    public MessageWriter put(String key, String value) {
+        LsnpField field = LsnpField.of(key);
+        if (field != null) {
+            return put(field, value);
+        }
+        if (fits(0)) {
+            try {
+                if (binary) {
+                    putVarint(0);
+                }
+                putText(key);
+                if (!binary) {
+                    out.put(SEPARATOR);
+                }
+                putText(value);
+                endField();
+            } catch (BufferOverflowException e) {
+                tooLarge = true;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a CONTENT-style text value, deflated and flagged with {@code ENCODING: deflate-d1}
+     * when {@code deflate} is set and that makes the message smaller. Only pass true for
+     * peers that advertised {@link PayloadCodec#CAPABILITY}.
+     */
+    public MessageWriter putCompressible(LsnpField field, String value, boolean deflate) {
+        if (deflate && PayloadCodec.worthTrying(value.length())) {
+            byte[] plain = value.getBytes(StandardCharsets.UTF_8);
+            byte[] packed = PayloadCodec.deflate(plain, 0, plain.length);
+            // Text messages carry the packed bytes as base64, which must still come out smaller
+            if (packed != null && (binary ? packed.length : (packed.length + 2) / 3 * 4) < plain.length) {
+                put(LsnpField.ENCODING, PayloadCodec.DEFLATE);
+                return putBase64(field, packed, 0, packed.length);
+            }
+        }
+        return put(field, value);
+    }
+
+    /**
+     * Writes {@code src[off, off+len)} as bytes: raw in LSNP-B, base64-encoded straight into
+     * the buffer in text.
+     */
+    public MessageWriter putBase64(LsnpField field, byte[] src, int off, int len) {
+        return putBase64(field, ByteBuffer.wrap(src, off, len));
+    }
+
+    /** Same as {@link #putBase64(LsnpField, byte[], int, int)} for the remaining bytes of {@code src}. */
+    public MessageWriter putBase64(LsnpField field, ByteBuffer src) {
+        int off = src.position();
+        int end = src.limit();
+        // Key, length or separator, and the value: raw, or four base64 characters per three bytes
+        if (!fits(field.keyBytes().length + 8 + (binary ? end - off : (end - off + 2) / 3 * 4))) {
+            return this;
+        }
+        key(field);
+        if (binary) {
+            putVarint(end - off);
+            out.put(src.duplicate());
+            return this;
+        }
+        int i = off;
+        for (; i + 2 < end; i += 3) {
+            int bits = (src.get(i) & 0xff) << 16 | (src.get(i + 1) & 0xff) << 8 | (src.get(i + 2) & 0xff);
+            out.put(BASE64[bits >>> 18]).put(BASE64[(bits >>> 12) & 0x3f])
+                    .put(BASE64[(bits >>> 6) & 0x3f]).put(BASE64[bits & 0x3f]);
+        }
+        if (i < end) {
+            int bits = (src.get(i) & 0xff) << 16 | (i + 1 < end ? (src.get(i + 1) & 0xff) << 8 : 0);
+            out.put(BASE64[bits >>> 18]).put(BASE64[(bits >>> 12) & 0x3f]);
+            out.put(i + 1 < end ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=').put((byte) '=');
+        }
+        out.put((byte) '\n');
+        return this;
+    }
+
+    // ASCII values (the common case) are copied char by char; anything else goes through UTF-8.
+    // In LSNP-B the value is preceded by its byte length.
+    private void putText(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                if (binary) {
+                    putVarint(utf8.length);
+                }
+                out.put(utf8);
+                return;
+            }
+        }
+        if (binary) {
+            putVarint(length);
+        }
+        for (int i = 0; i < length; i++) {
+            out.put((byte) value.charAt(i));
+        }
+    }
+
+    private void putDecimal(long value) {
+        long magnitude = Math.abs(value);
+        long divisor = 1;
+        int digits = 1;
+        while (magnitude / divisor >= 10) {
+            divisor *= 10;
+            digits++;
+        }
+        if (binary) {
+            putVarint(value < 0 ? digits + 1 : digits);
+        }
+        if (value < 0) {
+            out.put((byte) '-');
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + (magnitude / divisor) % 10));
+        }
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Terminates the message and returns a read-only view of it. Use a fresh
+     * {@code duplicate()} of the result for each destination when fanning out.
+     *
+     * @throws IOException if the message did not fit; the buffer has been released
+     */
+    public ByteBuffer finish() throws IOException {
+        if (!binary && fits(1)) {
+            out.put((byte) '\n');
+        }
+        if (tooLarge) {
+            release();
+            throw new IOException("Message does not fit in one " + out.capacity() + "-byte datagram");
+        }
+        out.flip();
+        return out.asReadOnlyBuffer();
+    }
+
+    public void release() {
+        if (!released) {
+            released = true;
+            pool.release(out);
+        }
+    }
+}
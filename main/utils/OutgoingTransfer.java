@@ -0,0 +1,328 @@
+package main.utils;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * State shared by all chunks of one file being sent to one peer. Unacknowledged chunks are held
+ * by index, so FILE_ACK ranges clear them directly; chunk MESSAGE_IDs are the transfer's tag
+ * followed by the chunk index, so a plain ACK maps back to its chunk without a lookup table.
+ *
+ * <p>A FILE_RESUME from the receiver lists the chunks it holds on disk: unsent ones among them are
+ * skipped, and ACKed ones missing from it (lost when the receiver restarted) are sent again. Unsent
+ * chunks a FILE_ACK reports, which the receiver got from a swarm peer, are skipped the same way.
+ *
+ * <p>When the receiver pulls from swarm peers, chunks one of those peers has already ACKed are
+ * delegated: they are left for the receiver to pull and settle when its FILE_ACK lists them. If
+ * none arrives for a while, the peers are presumed gone and the delegated chunks are sent after all.
+ */
+public final class OutgoingTransfer {
+    public final String fileId;
+    public final String fileName;
+    public final String toUserId;
+    public final InetAddress recipientAddress;
+    public final int recipientPort;
+    public final FileChunkSource source;
+    // SHA-256 of the whole file, which addresses its chunks in the chunk cache
+    public final String fileHash;
+    public final String tag = UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+    public final TransferWindow window = new TransferWindow();
+    public final RttEstimator rtt;
+    public volatile MessageTemplate template;
+    // Null unless the receiver rebuilds chunks from parity
+    public final XorFec fec;
+
+    private final AtomicReferenceArray<ChunkMetadata> pending;
+    // Unacknowledged chunks ordered by their latest send sequence, oldest first
+    private final ConcurrentSkipListMap<Long, ChunkMetadata> unacked = new ConcurrentSkipListMap<>();
+    private final AtomicInteger remaining;
+    private int cumulative = 0;
+    // Send order, guarded by this: chunks to send again first, then the next unsent one
+    private final ArrayDeque<Integer> reopened = new ArrayDeque<>();
+    private final BitSet queued = new BitSet();
+    private final BitSet have = new BitSet();
+    private int nextIndex = 0;
+    // Handed out by nextChunk but not yet sent
+    private int inHand = -1;
+    // Lost chunks whose next send sequence is assigned, waiting for the scheduler
+    private final ConcurrentLinkedQueue<ChunkMetadata> resends = new ConcurrentLinkedQueue<>();
+    // The receiver's swarm peers, and this receiver as later offers of the file list it; set before
+    // the first chunk is sent
+    public volatile List<SwarmDownload.Member> swarmSources = List.of();
+    public volatile SwarmDownload.Member swarmMember;
+    // Guarded by this; the deadline moves on whenever a delegated chunk arrives
+    private static final long DELEGATE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private final BitSet delegated = new BitSet();
+    private long delegateDeadlineNanos;
+    private boolean delegationFailed = false;
+    // Share of chunks lost on the way, counting resends and chunks the receiver rebuilt; guarded by this
+    private static final double LOSS_GAIN = 1.0 / 128;
+    private double lossRate = 0;
+    private int repairedSeen = 0;
+
+    public OutgoingTransfer(String fileId, String fileName, String toUserId, InetAddress recipientAddress,
+            int recipientPort, FileChunkSource source, String fileHash) {
+        this.fileId = fileId;
+        this.fileName = fileName;
+        this.toUserId = toUserId;
+        this.recipientAddress = recipientAddress;
+        this.recipientPort = recipientPort;
+        this.source = source;
+        this.fileHash = fileHash;
+        this.rtt = RttEstimator.forPeer(recipientAddress);
+        this.pending = new AtomicReferenceArray<>(source.totalChunks());
+        this.remaining = new AtomicInteger(source.totalChunks());
+        this.fec = XorFec.isEnabled() && PeerCapabilities.supports(recipientAddress, XorFec.CAPABILITY)
+                && PeerCapabilities.sackFor(recipientAddress) ? new XorFec(source.chunkSize()) : null;
+    }
+
+    public String messageId(int chunkIndex) {
+        return tag + String.format("%08x", chunkIndex);
+    }
+
+    /** Chunk index encoded in one of this transfer's MESSAGE_IDs, or -1. */
+    public static int chunkIndexOf(String messageId) {
+        if (messageId == null || messageId.length() != 16) {
+            return -1;
+        }
+        try {
+            return Integer.parseUnsignedInt(messageId, 8, 16, 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static String tagOf(String messageId) {
+        return messageId == null || messageId.length() != 16 ? null : messageId.substring(0, 8);
+    }
+
+    public void sent(ChunkMetadata meta, long previousSeq) {
+        if (previousSeq < 0) {
+            pending.set(meta.chunkIndex, meta);
+        } else {
+            unacked.remove(previousSeq, meta);
+        }
+        unacked.put(meta.sendSeq, meta);
+    }
+
+    /** Claims a chunk that is still outstanding, or returns null if it was already settled. */
+    public ChunkMetadata take(int chunkIndex) {
+        return chunkIndex >= 0 && chunkIndex < pending.length() ? pending.getAndSet(chunkIndex, null) : null;
+    }
+
+    /** The outstanding chunk at this index, or null; unlike {@link #take} it stays outstanding. */
+    public ChunkMetadata pendingChunk(int chunkIndex) {
+        return chunkIndex >= 0 && chunkIndex < pending.length() ? pending.get(chunkIndex) : null;
+    }
+
+    public boolean isPending(ChunkMetadata meta) {
+        return pending.get(meta.chunkIndex) == meta;
+    }
+
+    /** Moves the cumulative ACK point forward; returns the previous point, or -1 if it did not move. */
+    public synchronized int advanceCumulative(int upTo) {
+        int previous = cumulative;
+        if (upTo <= previous) {
+            return -1;
+        }
+        cumulative = Math.min(upTo, pending.length());
+        SwarmDownload.Member member = swarmMember;
+        if (member != null) {
+            member.advance(cumulative);
+        }
+        return previous;
+    }
+
+    /**
+     * Next chunk to send for the first time: one the receiver lost, else the next unsent chunk it
+     * does not already hold. Returns -1 if there is none right now.
+     */
+    public synchronized int nextChunk() {
+        Integer lost = reopened.poll();
+        if (lost != null) {
+            queued.clear(lost);
+            return inHand = lost;
+        }
+        if (delegationOverdue()) {
+            // Nobody delivered them: stop delegating and send them from here
+            delegationFailed = true;
+            int oldest = delegated.nextSetBit(0);
+            delegated.clear(oldest);
+            return inHand = oldest;
+        }
+        while (nextIndex < pending.length()) {
+            // Below the cumulative ACK point the receiver already has it, e.g. copied from its own disk
+            if (have.get(nextIndex) || nextIndex < cumulative) {
+                skipped(1);
+            } else if (heldBySwarm(nextIndex)) {
+                if (delegated.isEmpty()) {
+                    delegateDeadlineNanos = System.nanoTime() + DELEGATE_TIMEOUT_NANOS;
+                }
+                delegated.set(nextIndex);
+            } else {
+                break;
+            }
+            nextIndex++;
+        }
+        return nextIndex < pending.length() ? inHand = nextIndex++ : -1;
+    }
+
+    // Caller holds this
+    private boolean heldBySwarm(int chunkIndex) {
+        if (delegationFailed) {
+            return false;
+        }
+        for (SwarmDownload.Member peer : swarmSources) {
+            if (peer.ackedThrough() > chunkIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Caller holds this
+    private boolean delegationOverdue() {
+        return !delegated.isEmpty() && System.nanoTime() - delegateDeadlineNanos > 0;
+    }
+
+    /** The receiver reports a delegated chunk; returns true if it was one, and it is now settled. */
+    public synchronized boolean delegatedArrived(int chunkIndex) {
+        if (chunkIndex < 0 || !delegated.get(chunkIndex)) {
+            return false;
+        }
+        delegated.clear(chunkIndex);
+        delegateDeadlineNanos = System.nanoTime() + DELEGATE_TIMEOUT_NANOS;
+        return true;
+    }
+
+    /** The chunk from {@link #nextChunk()} was not sent after all; it is handed out again next. */
+    public synchronized void putBack(int chunkIndex) {
+        reopened.addFirst(chunkIndex);
+        queued.set(chunkIndex);
+        inHand = -1;
+    }
+
+    /** The chunk from {@link #nextChunk()} is now pending. */
+    public synchronized void dispatched() {
+        inHand = -1;
+    }
+
+    public synchronized boolean hasUnsent() {
+        return nextIndex < pending.length() || !reopened.isEmpty() || delegationOverdue();
+    }
+
+    public void queueResend(ChunkMetadata meta) {
+        resends.add(meta);
+    }
+
+    public ChunkMetadata pollResend() {
+        return resends.poll();
+    }
+
+    public boolean hasResends() {
+        return !resends.isEmpty();
+    }
+
+    /** Every chunk is settled or the transfer was abandoned; nothing more will be sent. */
+    public boolean isFinished() {
+        return remaining.get() == 0 || window.isAbandoned();
+    }
+
+    /**
+     * Applies a FILE_RESUME once its chunks have been acknowledged: unsent chunks it lists are
+     * skipped and settled chunks it leaves out are queued to be sent again. Returns how many were reopened.
+     */
+    public synchronized int resume(BitSet held) {
+        int count = 0;
+        for (int i = 0; i < nextIndex; i++) {
+            if (!held.get(i) && i != inHand && pending.get(i) == null && !queued.get(i) && !delegated.get(i)) {
+                reopened.add(i);
+                queued.set(i);
+                remaining.incrementAndGet();
+                source.unsettle();
+                cumulative = Math.min(cumulative, i);
+                count++;
+            }
+        }
+        skipAhead(held);
+        return count;
+    }
+
+    /** Chunks not yet sent that the receiver already holds, e.g. pulled from a swarm peer, are skipped. */
+    public synchronized void skipAhead(BitSet held) {
+        for (int i = held.nextSetBit(nextIndex); i >= 0 && i < pending.length(); i = held.nextSetBit(i + 1)) {
+            have.set(i);
+        }
+    }
+
+    /** Settles every chunk that will now never be sent; returns true if none are left outstanding. */
+    public synchronized boolean abandonUnsent() {
+        int unsent = reopened.size() + (inHand >= 0 ? 1 : 0) + delegated.cardinality();
+        for (; nextIndex < pending.length(); nextIndex++) {
+            unsent++;
+        }
+        reopened.clear();
+        queued.clear();
+        delegated.clear();
+        resends.clear();
+        inHand = -1;
+        return unsent > 0 ? skipped(unsent) : remaining.get() == 0;
+    }
+
+    /** The chunk was ACKed or given up on; returns true once that is so for every chunk. */
+    public boolean settled(ChunkMetadata meta) {
+        unacked.remove(meta.sendSeq, meta);
+        source.settle();
+        return remaining.decrementAndGet() == 0;
+    }
+
+    /** Settles chunks that were never sent because the transfer was abandoned. */
+    public boolean skipped(int count) {
+        for (int i = 0; i < count; i++) {
+            source.settle();
+        }
+        return remaining.addAndGet(-count) == 0;
+    }
+
+    public synchronized void noteDelivered() {
+        lossRate -= lossRate * LOSS_GAIN;
+    }
+
+    public synchronized void noteLost() {
+        lossRate += (1 - lossRate) * LOSS_GAIN;
+    }
+
+    /** Takes the receiver's running count of chunks rebuilt from parity; each one was a loss. */
+    public synchronized void noteRepaired(int total) {
+        int delta = Math.min(total, source.totalChunks()) - repairedSeen;
+        if (delta <= 0) {
+            return;
+        }
+        // delta noteLost() calls in one step
+        lossRate = 1 - (1 - lossRate) * Math.pow(1 - LOSS_GAIN, delta);
+        repairedSeen += delta;
+    }
+
+    public synchronized double lossRate() {
+        return lossRate;
+    }
+
+    public synchronized int repairedChunks() {
+        return repairedSeen;
+    }
+
+    /** Oldest unacknowledged chunk if later ACKs show it was lost, else null. */
+    public ChunkMetadata oldestPassed() {
+        Map.Entry<Long, ChunkMetadata> oldest = unacked.firstEntry();
+        return oldest != null && window.isPassed(oldest.getKey()) ? oldest.getValue() : null;
+    }
+}
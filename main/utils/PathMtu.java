@@ -0,0 +1,156 @@
+package main.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * Largest datagram known to reach each peer without IP fragmentation. Probes of growing size
+ * are sent from a separate socket with the don't-fragment bit set; the peer answers each one it
+ * receives with MTU_PROBE_ACK. The first size that goes unanswered twice ends the search, so a
+ * lost or blackholed probe only ever leaves the peer at a smaller, already confirmed size.
+ */
+public final class PathMtu {
+    /** Peer answers MTU_PROBE. */
+    public static final String CAPABILITY = "PMTU";
+    /** Datagram size assumed to fit any path; never probed. */
+    public static final int BASE_DATAGRAM = 1200;
+
+    // Ethernet, jumbo frames, then up to the largest UDP payload the receive buffers take
+    private static final int[] PROBE_SIZES = {1472, 8972, 16384, 32768, 65000};
+    private static final int PROBE_ATTEMPTS = 2;
+    private static final long PROBE_TIMEOUT_MS = Long.getLong("lsnp.pmtuTimeout", 250L);
+    private static final long CACHE_MS = 10 * 60 * 1000L;
+    // Room for the FILE_CHUNK header fields around DATA
+    private static final int CHUNK_HEADER_RESERVE = 384;
+    private static final int MIN_CHUNK_SIZE = 512;
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("lsnp.pmtu", "true"));
+
+    private static final ConcurrentHashMap<String, long[]> byAddress = new ConcurrentHashMap<>();
+
+    private PathMtu() {
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /** Forgets what was learned about a peer, e.g. after a transfer to it failed. */
+    public static void reset(InetAddress address) {
+        byAddress.remove(address.getHostAddress());
+    }
+
+    /**
+     * Largest confirmed datagram size for the peer, probing if nothing recent is cached.
+     * Blocks for at most a few probe timeouts.
+     */
+    public static int discover(InetAddress address, int port, String fromUserId) {
+        long[] cached = byAddress.get(address.getHostAddress());
+        if (cached != null && System.currentTimeMillis() - cached[1] < CACHE_MS) {
+            return (int) cached[0];
+        }
+        int confirmed = probe(address, port, fromUserId);
+        byAddress.put(address.getHostAddress(), new long[] {confirmed, System.currentTimeMillis()});
+        VerboseLogger.log("Path MTU to {} is {} bytes", address.getHostAddress(), confirmed);
+        return confirmed;
+    }
+
+    /** Chunk payload that keeps a whole FILE_CHUNK within {@code datagram} bytes. */
+    public static int chunkSizeFor(int datagram, WireFormat format) {
+        int room = datagram - CHUNK_HEADER_RESERVE;
+        // Text messages carry DATA as base64, four characters per three bytes
+        int size = format == WireFormat.BINARY ? room : room / 4 * 3;
+        return Math.max(MIN_CHUNK_SIZE, size);
+    }
+
+    private static int probe(InetAddress address, int port, String fromUserId) {
+        int confirmed = BASE_DATAGRAM;
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            // Without DF a probe could arrive fragmented and prove nothing, so stay at Ethernet size
+            int maxProbe = dontFragment(channel) ? Integer.MAX_VALUE : 1472;
+            channel.bind(new InetSocketAddress(0));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            InetSocketAddress target = new InetSocketAddress(address, port);
+
+            for (int size : PROBE_SIZES) {
+                if (size > maxProbe || !probeSize(channel, selector, target, fromUserId, size)) {
+                    break;
+                }
+                confirmed = size;
+            }
+        } catch (IOException e) {
+            VerboseLogger.log("Path MTU probing to {} failed: {}", address.getHostAddress(), e.getMessage());
+        }
+        return confirmed;
+    }
+
+    private static boolean dontFragment(DatagramChannel channel) {
+        if (!channel.supportedOptions().contains(ExtendedSocketOptions.IP_DONTFRAGMENT)) {
+            return false;
+        }
+        try {
+            channel.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean probeSize(DatagramChannel channel, Selector selector, InetSocketAddress target,
+            String fromUserId, int size) throws IOException {
+        String messageId = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+        ByteBuffer probe = probeMessage(fromUserId, messageId, size);
+        ByteBuffer reply = ByteBuffer.allocate(2048);
+
+        for (int attempt = 0; attempt < PROBE_ATTEMPTS; attempt++) {
+            try {
+                channel.send(probe.duplicate(), target);
+            } catch (IOException e) {
+                // EMSGSIZE: larger than the local interface allows
+                return false;
+            }
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_MS;
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                if (selector.select(remaining) == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                reply.clear();
+                while (channel.receive(reply) != null) {
+                    reply.flip();
+                    LsnpMessage ack = MessageParser.parse(reply);
+                    if ("MTU_PROBE_ACK".equals(ack.get(LsnpField.TYPE))
+                            && messageId.equals(ack.get(LsnpField.MESSAGE_ID))) {
+                        return true;
+                    }
+                    reply.clear();
+                }
+            }
+            VerboseLogger.retry("MTU probe of {} bytes to {} unanswered (attempt {})", size, target, attempt + 1);
+        }
+        return false;
+    }
+
+    // Text probe padded to exactly {@code size} bytes
+    private static ByteBuffer probeMessage(String fromUserId, String messageId, int size) {
+        String header = "TYPE: MTU_PROBE\nFROM: " + fromUserId + "\nMESSAGE_ID: " + messageId + "\nPADDING: ";
+        byte[] bytes = new byte[Math.max(size, header.length() + 2)];
+        byte[] head = header.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(head, 0, bytes, 0, head.length);
+        Arrays.fill(bytes, head.length, bytes.length - 2, (byte) 'x');
+        bytes[bytes.length - 2] = '\n';
+        bytes[bytes.length - 1] = '\n';
+        return ByteBuffer.wrap(bytes);
+    }
+}
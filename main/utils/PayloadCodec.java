@@ -0,0 +1,145 @@
+package main.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate for CONTENT and DATA values, marked on the wire with {@code ENCODING: deflate-d1}.
+ * Both sides use the same preset dictionary, so chat messages and small text files compress
+ * well from the first byte. Deflater and Inflater hold native zlib state, so
+ * instances are pooled and reused rather than created per message; handlers run on virtual
+ * threads, where a ThreadLocal would be one instance per message anyway.
+ */
+public final class PayloadCodec {
+    /**
+     * ENCODING of a value deflated against {@link #DICTIONARY}. The dictionary is part of the wire
+     * format: a changed one gets a new id here and in {@link #CAPABILITY}, so peers holding
+     * different dictionaries send each other plain values instead of undecodable ones.
+     */
+    public static final String DEFLATE = "deflate-d1";
+    public static final String CAPABILITY = "DEFLATE-D1";
+    /** Plain deflate with no dictionary, which {@link #inflate} also accepts. */
+    public static final String DEFLATE_PLAIN = "deflate";
+
+    // -Dlsnp.compress=false disables it, -Dlsnp.compressMin sets the smallest payload worth trying
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("lsnp.compress", "true"));
+    private static final int MIN_SIZE = Integer.getInteger("lsnp.compressMin", 256);
+    private static final int MAX_INFLATED_SIZE = 1 << 20;
+    private static final int MAX_POOLED = 16;
+
+    // Only CONTENT and DATA values are deflated, never header lines, so the dictionary is made of
+    // what those hold: text files (markup, JSON, CSV, source) and long chat messages. Deflate looks
+    // back from the end of the dictionary, so the most common strings go last.
+    private static final byte[] DICTIONARY = (
+            "<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title></title>\n</head>\n<body>\n"
+            + "<div class=\"\"></div>\n<p></p>\n<a href=\"https://\"></a>\n</body>\n</html>\n"
+            + "{\n  \"id\": \"name\": \"type\": \"value\": \"data\": [\n    {\n null, true, false }\n]\n"
+            + "import java.util.*;\npublic class  {\n    private static final  public void  return null;\n    }\n}\n"
+            + "def __init__(self, self. print( if __name__ == \"__main__\":\n#include <stdio.h>\nint main(void) "
+            + "id,name,date,value,total\n# ## - [ ](http:// ** ```\n"
+            + "https://www. .com/ .org/ .edu/ .pdf .txt .png .jpg .zip .docx "
+            + "Monday Tuesday Wednesday Thursday Friday Saturday Sunday January February March April May June "
+            + "July August September October November December morning afternoon evening tonight tomorrow "
+            + "yesterday today next week this weekend assignment deadline project meeting class lab exam "
+            + "Hi everyone, Hey guys, Thank you so much! Thanks for the help. Sorry for the late reply. "
+            + "Let me know if you have any questions. Sounds good to me. See you later! By the way, "
+            + "I don't think I'm not sure I'll send it I've been I was wondering if you could "
+            + "Do you want to Can you please What do you think? Did you see haha lol okay yeah "
+            + "would could should there their they're because about which when what where will with "
+            + "have from this that your you're just know like some them then than also been were into "
+            + "more other only over such time very after before first make people good well back even "
+            + " the and for are but not you all any can had her was one our out day get has him his how "
+            + ". I think it is going to be the one of the in the to the and the of the for the on the ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+    private static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private PayloadCodec() {
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /** True if a payload of {@code length} bytes is large enough to be worth compressing. */
+    public static boolean worthTrying(int length) {
+        return ENABLED && length >= MIN_SIZE;
+    }
+
+    /** Deflates {@code src[off, off+len)}, or returns null if the result would not be smaller. */
+    public static byte[] deflate(byte[] src, int off, int len) {
+        return deflate(ByteBuffer.wrap(src, off, len));
+    }
+
+    /** Deflates the remaining bytes of {@code src} without moving its position; null if not smaller. */
+    public static byte[] deflate(ByteBuffer src) {
+        int len = src.remaining();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(src.duplicate());
+            deflater.finish();
+            byte[] out = new byte[len];
+            int written = 0;
+            while (!deflater.finished() && written < out.length) {
+                written += deflater.deflate(out, written, out.length - written);
+            }
+            return deflater.finished() && written < len ? Arrays.copyOf(out, written) : null;
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Inflates a payload produced by {@link #deflate}.
+     *
+     * @throws IllegalArgumentException if the payload is corrupt, truncated or inflates past 1 MiB
+     */
+    public static byte[] inflate(byte[] src) {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(src);
+            byte[] out = new byte[Math.max(64, src.length * 4)];
+            int written = 0;
+            while (!inflater.finished()) {
+                if (written == out.length) {
+                    if (out.length >= MAX_INFLATED_SIZE) {
+                        throw new IllegalArgumentException("Deflated payload larger than " + MAX_INFLATED_SIZE + " bytes");
+                    }
+                    out = Arrays.copyOf(out, Math.min(out.length * 2, MAX_INFLATED_SIZE));
+                }
+                int n = inflater.inflate(out, written, out.length - written);
+                written += n;
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new IllegalArgumentException("Truncated deflate payload");
+                    }
+                }
+            }
+            return Arrays.copyOf(out, written);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid deflate payload: " + e.getMessage(), e);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package main.utils;
+
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional protocol features each peer has advertised in its PROFILE CAPABILITIES field,
+ * keyed by the peer's IP address. Peers that never advertised anything are treated as
+ * plain-text clients.
+ */
+public final class PeerCapabilities {
+    // Set -Dlsnp.binary=false to neither advertise nor send LSNP-B
+    private static final boolean BINARY_ENABLED = Boolean.parseBoolean(System.getProperty("lsnp.binary", "true"));
+    // Set -Dlsnp.sack=false to keep ACKing every file chunk individually
+    private static final boolean SACK_ENABLED = Boolean.parseBoolean(System.getProperty("lsnp.sack", "true"));
+    // Set -Dlsnp.crc=false to send file chunks without a checksum
+    private static final boolean CRC_ENABLED = Boolean.parseBoolean(System.getProperty("lsnp.crc", "true"));
+
+    /** Peer understands FILE_ACK with CUMULATIVE and SACK in place of one ACK per file chunk. */
+    public static final String SACK = "SACK";
+    /** Peer checks the CRC32C carried in each FILE_CHUNK and NACKs corrupt chunks in FILE_ACK. */
+    public static final String CRC32C = "CRC32C";
+
+    private static final ConcurrentHashMap<String, Set<String>> byAddress = new ConcurrentHashMap<>();
+
+    private PeerCapabilities() {
+    }
+
+    /** Value for our own PROFILE CAPABILITIES field, or null if we have nothing to advertise. */
+    public static String advertised() {
+        StringJoiner capabilities = new StringJoiner(",");
+        if (BINARY_ENABLED) {
+            capabilities.add(WireFormat.BINARY_CAPABILITY);
+        }
+        if (PayloadCodec.isEnabled()) {
+            capabilities.add(PayloadCodec.CAPABILITY);
+        }
+        if (SACK_ENABLED) {
+            capabilities.add(SACK);
+        }
+        if (CRC_ENABLED) {
+            capabilities.add(CRC32C);
+        }
+        if (PathMtu.isEnabled()) {
+            capabilities.add(PathMtu.CAPABILITY);
+        }
+        if (XorFec.isEnabled() && SACK_ENABLED) {
+            capabilities.add(XorFec.CAPABILITY);
+        }
+        if (SwarmDownload.isEnabled() && SACK_ENABLED) {
+            capabilities.add(SwarmDownload.CAPABILITY);
+        }
+        if (DeltaSignatures.isEnabled() && SACK_ENABLED) {
+            capabilities.add(DeltaSignatures.CAPABILITY);
+        }
+        return capabilities.length() == 0 ? null : capabilities.toString();
+    }
+
+    /** Records what a peer advertised; a PROFILE without CAPABILITIES clears earlier entries. */
+    public static void update(String ip, String capabilities) {
+        if (capabilities == null || capabilities.isBlank()) {
+            byAddress.remove(ip);
+            return;
+        }
+        Set<String> set = ConcurrentHashMap.newKeySet();
+        for (String capability : capabilities.split(",")) {
+            if (!capability.isBlank()) {
+                set.add(capability.trim().toUpperCase());
+            }
+        }
+        byAddress.put(ip, set);
+        VerboseLogger.log("Peer {} supports {}", ip, set);
+    }
+
+    public static boolean supports(InetAddress address, String capability) {
+        Set<String> set = byAddress.get(address.getHostAddress());
+        return set != null && set.contains(capability);
+    }
+
+    /** True if payloads for this peer may be sent with {@code ENCODING: deflate-d1}. */
+    public static boolean deflateFor(InetAddress address) {
+        return PayloadCodec.isEnabled() && supports(address, PayloadCodec.CAPABILITY);
+    }
+
+    /** True if file chunks from this peer should be acknowledged with batched FILE_ACKs. */
+    public static boolean sackFor(InetAddress address) {
+        return SACK_ENABLED && supports(address, SACK);
+    }
+
+    /** True if file chunks to this peer should carry a CRC32C. */
+    public static boolean crcFor(InetAddress address) {
+        return CRC_ENABLED && supports(address, CRC32C);
+    }
+
+    public static WireFormat wireFormatFor(InetAddress address) {
+        return BINARY_ENABLED && supports(address, WireFormat.BINARY_CAPABILITY) ? WireFormat.BINARY : WireFormat.TEXT;
+    }
+}
@@ -0,0 +1,80 @@
+package main.utils;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One datagram as it came off the socket: payload, sender and receive time.
+ * The payload lives in a pooled buffer, so call {@link #release()} once the
+ * message has been handled and do not touch the payload afterwards.
+ */
+public final class ReceivedDatagram {
+    private final ByteBuffer buffer;
+    private final ByteBuffer payload;
+    private final InetAddress senderAddress;
+    private final int senderPort;
+    private final long receivedAtMillis;
+    private final long receivedAtNanos;
+    private final BufferPool pool;
+    private volatile boolean released = false;
+
+    public ReceivedDatagram(ByteBuffer buffer, InetAddress senderAddress, int senderPort, BufferPool pool) {
+        this.buffer = buffer;
+        this.payload = buffer.asReadOnlyBuffer();
+        this.senderAddress = senderAddress;
+        this.senderPort = senderPort;
+        this.receivedAtMillis = System.currentTimeMillis();
+        this.receivedAtNanos = System.nanoTime();
+        this.pool = pool;
+    }
+
+    /** Read-only view of the payload, positioned at the first byte. */
+    public ByteBuffer payload() {
+        checkNotReleased();
+        return payload.duplicate();
+    }
+
+    public int length() {
+        return payload.remaining();
+    }
+
+    public String text() {
+        checkNotReleased();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public InetAddress getSenderAddress() {
+        return senderAddress;
+    }
+
+    public int getSenderPort() {
+        return senderPort;
+    }
+
+    public long getReceivedAtMillis() {
+        return receivedAtMillis;
+    }
+
+    public long getReceivedAtNanos() {
+        return receivedAtNanos;
+    }
+
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (pool != null) {
+            pool.release(buffer);
+        }
+    }
+
+    private void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("Datagram buffer already returned to pool");
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package main.utils;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Smoothed round-trip time and variance for one peer (Jacobson/Karels, as in RFC 6298), used to
+ * time chunk retransmissions. Samples must only come from chunks that were sent once (Karn's
+ * rule); a retransmitted chunk's ACK can't tell which copy it answers.
+ */
+public final class RttEstimator {
+    private static final long INITIAL_RTO_NANOS = 1_000_000_000L;
+    private static final long MIN_RTO_NANOS = Long.getLong("lsnp.minRto", 100L) * 1_000_000L;
+    private static final long MAX_RTO_NANOS = Long.getLong("lsnp.maxRto", 10_000L) * 1_000_000L;
+    // Clock granularity term of the RTO formula
+    private static final long GRANULARITY_NANOS = 1_000_000L;
+
+    private static final ConcurrentHashMap<String, RttEstimator> byAddress = new ConcurrentHashMap<>();
+
+    private long srttNanos = -1;
+    private long rttvarNanos;
+    private long rtoNanos = INITIAL_RTO_NANOS;
+
+    /** Shared estimator for a peer, so a new transfer starts from what earlier ones measured. */
+    public static RttEstimator forPeer(InetAddress address) {
+        return byAddress.computeIfAbsent(address.getHostAddress(), ip -> new RttEstimator());
+    }
+
+    public synchronized void sample(long rttNanos) {
+        if (rttNanos <= 0) {
+            return;
+        }
+        if (srttNanos < 0) {
+            srttNanos = rttNanos;
+            rttvarNanos = rttNanos / 2;
+        } else {
+            rttvarNanos += (Math.abs(srttNanos - rttNanos) - rttvarNanos) / 4;
+            srttNanos += (rttNanos - srttNanos) / 8;
+        }
+        long rto = srttNanos + Math.max(GRANULARITY_NANOS, 4 * rttvarNanos);
+        rtoNanos = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, rto));
+    }
+
+    /** Timeout for a chunk already sent {@code retries} times, doubling with every retry. */
+    public synchronized long timeoutNanos(int retries) {
+        return Math.min(MAX_RTO_NANOS, rtoNanos << Math.min(retries, 16));
+    }
+
+    public synchronized String summary() {
+        return String.format("srtt %.1f ms, rto %d ms", srttNanos < 0 ? 0 : srttNanos / 1e6, rtoNanos / 1_000_000);
+    }
+}
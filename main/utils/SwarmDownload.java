@@ -0,0 +1,239 @@
+package main.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pull side of a swarm download. Other receivers of the same file (same FILEHASH and chunk size)
+ * serve the chunks they hold, so the sender's uplink is not the only source. The sender skips
+ * chunks those peers have already ACKed, which leaves gaps below the highest chunk it has sent us.
+ * The gaps are asked of the peers known to hold them, oldest first and disjoint between peers.
+ * Once the sender goes quiet, any missing chunk is asked for. Guarded by this.
+ */
+public final class SwarmDownload {
+    /** Peer serves chunks it holds on FILE_REQUEST and answers with FILE_HAVE. */
+    public static final String CAPABILITY = "SWARM";
+    public static final int MAX_PEERS = 8;
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("lsnp.swarm", "true"));
+    // Chunk bytes asked of one peer at a time; the next request goes out once they arrive
+    private static final int REQUEST_BYTES = 256 * 1024;
+    private static final long REQUEST_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    // A peer with nothing we need is asked what it holds this often
+    private static final long HAVE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Chunks above the sender's latest are its to send, unless it has been quiet this long
+    private static final long ORIGIN_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Another receiver of the file, as listed in a FILE_OFFER's PEERS field: {@code userId=ip:port}. */
+    public record Peer(String userId, InetAddress address, int port) {
+        public String key() {
+            return address.getHostAddress() + ":" + port;
+        }
+
+        public String encode() {
+            return userId + "=" + key();
+        }
+
+        public static Peer parse(String entry) throws UnknownHostException {
+            int equals = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            if (equals <= 0 || colon <= equals) {
+                throw new IllegalArgumentException("Bad PEERS entry " + entry);
+            }
+            return new Peer(entry.substring(0, equals).trim(),
+                    InetAddress.getByName(entry.substring(equals + 1, colon).trim()),
+                    Integer.parseInt(entry.substring(colon + 1).trim()));
+        }
+    }
+
+    /**
+     * What a sender remembers of one receiver of a file once it has been offered it: the peer to
+     * list in later offers and how far its cumulative ACK got. The transfer itself is not kept.
+     */
+    public static final class Member {
+        public final Peer peer;
+        private volatile int ackedThrough = 0;
+        private volatile long expiresAtNanos = Long.MAX_VALUE;
+
+        public Member(Peer peer) {
+            this.peer = peer;
+        }
+
+        public int ackedThrough() {
+            return ackedThrough;
+        }
+
+        // Only the member's own transfer moves it, from under the transfer's lock
+        void advance(int cumulative) {
+            if (cumulative > ackedThrough) {
+                ackedThrough = cumulative;
+            }
+        }
+
+        public void expireAfter(long nanos) {
+            expiresAtNanos = System.nanoTime() + nanos;
+        }
+
+        public boolean isExpired(long nowNanos) {
+            return nowNanos - expiresAtNanos >= 0;
+        }
+    }
+
+    private static final class PeerState {
+        final Peer peer;
+        // Null until the peer's first FILE_HAVE
+        BitSet have;
+        BitSet asked = new BitSet();
+        long askedAtNanos;
+
+        PeerState(Peer peer) {
+            this.peer = peer;
+        }
+    }
+
+    public final String fileId;
+    public final String fileHash;
+    public final int chunkSize;
+    public final int totalChunks;
+    public final Peer origin;
+    private final Map<String, PeerState> peers = new LinkedHashMap<>();
+    private int pulled = 0;
+    private int originHighest = -1;
+    private long originNanos = System.nanoTime();
+    private ScheduledFuture<?> ticker;
+
+    public SwarmDownload(String fileId, String fileHash, int chunkSize, int totalChunks, Peer origin) {
+        this.fileId = fileId;
+        this.fileHash = fileHash;
+        this.chunkSize = chunkSize;
+        this.totalChunks = totalChunks;
+        this.origin = origin;
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static String encodePeers(Collection<Peer> peers) {
+        StringJoiner joined = new StringJoiner(",");
+        for (Peer peer : peers) {
+            joined.add(peer.encode());
+        }
+        return joined.toString();
+    }
+
+    /** Entries of a PEERS field; malformed or unresolvable ones are skipped. */
+    public static List<Peer> parsePeers(String peers) {
+        List<Peer> list = new ArrayList<>();
+        if (peers == null || peers.isBlank()) {
+            return list;
+        }
+        for (String entry : peers.split(",")) {
+            try {
+                list.add(Peer.parse(entry));
+            } catch (UnknownHostException | IllegalArgumentException e) {
+                VerboseLogger.drop("Ignoring swarm peer {}: {}", entry, e.getMessage());
+            }
+        }
+        return list;
+    }
+
+    public boolean matches(String fileHash, int chunkSize) {
+        return this.fileHash.equalsIgnoreCase(fileHash) && this.chunkSize == chunkSize;
+    }
+
+    public boolean isOrigin(String ip, int port) {
+        return origin.address().getHostAddress().equals(ip) && origin.port() == port;
+    }
+
+    /** Returns false if the peer is the sender, already known, or the swarm is full. */
+    public synchronized boolean addPeer(Peer peer) {
+        if (peer.key().equals(origin.key()) || peers.containsKey(peer.key()) || peers.size() >= MAX_PEERS) {
+            return false;
+        }
+        peers.put(peer.key(), new PeerState(peer));
+        return true;
+    }
+
+    public synchronized void updateHave(String peerKey, BitSet have) {
+        PeerState state = peers.get(peerKey);
+        if (state != null) {
+            state.have = have;
+        }
+    }
+
+    public synchronized void fromOrigin(int chunkIndex) {
+        originHighest = Math.max(originHighest, chunkIndex);
+        originNanos = System.nanoTime();
+    }
+
+    public synchronized void pulled() {
+        pulled++;
+    }
+
+    public synchronized int pulledChunks() {
+        return pulled;
+    }
+
+    public synchronized int peerCount() {
+        return peers.size();
+    }
+
+    /**
+     * Next FILE_REQUEST for every peer whose last one was answered or timed out, as the chunks to
+     * ask for. An empty set only asks what the peer holds. Chunks still awaited from one peer are
+     * not asked of another.
+     */
+    public synchronized Map<Peer, BitSet> plan(BitSet missing, long nowNanos) {
+        int batch = Math.max(1, REQUEST_BYTES / chunkSize);
+        BitSet claimed = new BitSet();
+        for (PeerState state : peers.values()) {
+            state.asked.and(missing);
+            if (awaiting(state, nowNanos)) {
+                claimed.or(state.asked);
+            }
+        }
+
+        int limit = nowNanos - originNanos > ORIGIN_IDLE_NANOS ? totalChunks : originHighest;
+        Map<Peer, BitSet> requests = new LinkedHashMap<>();
+        for (PeerState state : peers.values()) {
+            if (awaiting(state, nowNanos)) {
+                continue;
+            }
+            BitSet want = new BitSet();
+            int count = 0;
+            for (int i = missing.nextSetBit(0); i >= 0 && i < limit && count < batch; i = missing.nextSetBit(i + 1)) {
+                if (!claimed.get(i) && (state.have == null || state.have.get(i))) {
+                    want.set(i);
+                    count++;
+                }
+            }
+            if (want.isEmpty() && nowNanos - state.askedAtNanos < HAVE_REFRESH_NANOS) {
+                continue;
+            }
+            claimed.or(want);
+            state.asked = want;
+            state.askedAtNanos = nowNanos;
+            requests.put(state.peer, want);
+        }
+        return requests;
+    }
+
+    private static boolean awaiting(PeerState state, long nowNanos) {
+        return !state.asked.isEmpty() && nowNanos - state.askedAtNanos < REQUEST_TIMEOUT_NANOS;
+    }
+
+    public synchronized void start(ScheduledExecutorService timer, Runnable tick, long periodMs) {
+        ticker = timer.scheduleWithFixedDelay(tick, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.cancel(false);
+        }
+    }
+}
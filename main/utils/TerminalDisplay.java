@@ -35,6 +35,13 @@ public class TerminalDisplay {
         System.out.println("----------------");
     }
 
+    public static void displayBundleOffer(String sender, String folderName, String fileCount) {
+        System.out.println("\n=== FILE OFFER ===");
+        System.out.println("\nUser " + sender + " is sending you a folder: " + folderName + " (" + fileCount
+                + " files). Do you accept?");
+        System.out.println("----------------");
+    }
+
     public static void displayLikeNotification(String liker, String likedMessageId) {
         System.out.println("\n=== NEW LIKE ===");
         System.out.println(liker + " liked post with ID: " + likedMessageId);
@@ -0,0 +1,49 @@
+package main.utils;
+
+/**
+ * Byte-rate token bucket. Not thread-safe; each bucket is driven by a single sender at a time.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long rateBytesPerSecond;
+    private final long burstBytes;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(long rateBytesPerSecond, long burstBytes) {
+        this.rateBytesPerSecond = Math.max(1, rateBytesPerSecond);
+        this.burstBytes = Math.max(1, burstBytes);
+        this.tokens = this.burstBytes;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes {@code bytes} tokens if the bucket allows it and returns 0, otherwise takes
+     * nothing and returns how many nanoseconds to wait before asking again. A message
+     * bigger than the burst size goes out once the bucket is full and drives it negative.
+     */
+    public long tryConsume(int bytes) {
+        refill();
+        double needed = Math.min(bytes, burstBytes);
+        if (tokens >= needed) {
+            tokens -= bytes;
+            return 0;
+        }
+        return Math.max(1, (long) ((needed - tokens) * NANOS_PER_SECOND / rateBytesPerSecond));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefillNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastRefillNanos = now;
+        tokens = Math.min(burstBytes, tokens + (double) elapsed * rateBytesPerSecond / NANOS_PER_SECOND);
+    }
+
+    public long getRateBytesPerSecond() {
+        return rateBytesPerSecond;
+    }
+}
@@ -15,8 +15,10 @@ import java.util.concurrent.ConcurrentHashMap;
 
         public static boolean validate(Map<String, String> msg, String expectedScope) {
             String userId = msg.getOrDefault("FROM", msg.getOrDefault("USER_ID", null));
-            String token = msg.get("TOKEN");
+            return validate(userId, msg.get("TOKEN"), expectedScope);
+        }
 
+        public static boolean validate(String userId, String token, String expectedScope) {
             if (userId == null || token == null) {
                 VerboseLogger.token("UNKNOWN", false);
                 return false;
@@ -51,7 +53,7 @@ import java.util.concurrent.ConcurrentHashMap;
         public static void revoke(String token) {
             if (token != null && !token.isEmpty()) {
                 revokedTokens.add(token);
-                VerboseLogger.log("Token revoked: " + token);
+                VerboseLogger.log("Token revoked: {}", token);
             }
         }
 
@@ -0,0 +1,27 @@
+package main.utils;
+
+/**
+ * Point-in-time view of one file transfer, outgoing or incoming. {@code bytesDone} counts
+ * acknowledged bytes for a send and bytes written to disk for a receive.
+ */
+public record TransferProgress(String fileId, String fileName, String peer, boolean outgoing, State state,
+        long bytesDone, long totalBytes, long bytesPerSecond) {
+
+    public enum State {
+        /** Waiting for a free transfer slot. */
+        QUEUED,
+        /** Probing the path and hashing the file before the offer goes out. */
+        STARTING,
+        ACTIVE
+    }
+
+    public int percent() {
+        return totalBytes <= 0 ? 100 : (int) Math.min(100, bytesDone * 100 / totalBytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s %s %s: %s, %d%% of %d bytes, %d KB/s", outgoing ? "To" : "From", peer, fileName,
+                fileId == null ? "" : "(" + fileId + ")", state, percent(), totalBytes, bytesPerSecond / 1024);
+    }
+}
@@ -0,0 +1,243 @@
+package main.utils;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs outgoing file transfers side by side. At most {@code lsnp.maxTransfers} are active at
+ * once and later ones wait their turn. A single thread hands chunks to the socket by deficit
+ * round-robin: each round every peer with something to send earns the same byte quantum,
+ * split evenly between its files, and a file's resends are served before its new chunks out of
+ * the same allowance. Chunk payloads waiting in the socket queues are capped at
+ * {@code lsnp.fileQueueBytes}, split evenly between peers so a slow peer cannot hold the
+ * memory a fast one needs.
+ */
+public final class TransferScheduler {
+    public static final int MAX_TRANSFERS = Integer.getInteger("lsnp.maxTransfers", 4);
+    private static final long MAX_QUEUED_BYTES = Long.getLong("lsnp.fileQueueBytes", 16L * 1024 * 1024);
+    private static final int QUANTUM_BYTES = 64 * 1024;
+    private static final long IDLE_WAIT_MS = 10;
+
+    /** Sends on behalf of the scheduler; both futures complete when the datagram reaches the socket. */
+    public interface ChunkSender {
+        CompletableFuture<Void> send(OutgoingTransfer transfer, int chunkIndex, long sendSeq);
+
+        CompletableFuture<Void> resend(ChunkMetadata meta);
+
+        /** Every chunk is settled or the transfer was abandoned. */
+        void finished(OutgoingTransfer transfer);
+    }
+
+    private static final class Entry {
+        final String fileName;
+        final String toUserId;
+        final long size;
+        final Callable<OutgoingTransfer> setup;
+        volatile OutgoingTransfer transfer;
+        volatile TransferProgress.State state = TransferProgress.State.QUEUED;
+        // Scheduler thread only
+        long deficit = 0;
+
+        Entry(String fileName, String toUserId, long size, Callable<OutgoingTransfer> setup) {
+            this.fileName = fileName;
+            this.toUserId = toUserId;
+            this.size = size;
+            this.setup = setup;
+        }
+
+        String destination() {
+            return transfer.recipientAddress.getHostAddress() + ":" + transfer.recipientPort;
+        }
+    }
+
+    private final ChunkSender sender;
+    private final ExecutorService setupExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    // Guarded by this
+    private final ArrayDeque<Entry> waiting = new ArrayDeque<>();
+    private final List<Entry> starting = new ArrayList<>();
+    private final List<Entry> active = new ArrayList<>();
+    private boolean woken = false;
+    // Chunk bytes handed to the socket queue but not yet sent, per destination
+    private final Map<String, AtomicLong> queuedBytes = new ConcurrentHashMap<>();
+
+    public TransferScheduler(ChunkSender sender) {
+        this.sender = sender;
+        Thread thread = new Thread(this::run, "lsnp-file-sched");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a transfer. {@code setup} runs off the scheduler thread once a slot is free; it
+     * probes, hashes and offers the file, and returns the transfer, or null if it failed.
+     */
+    public synchronized void submit(String fileName, String toUserId, long size, Callable<OutgoingTransfer> setup) {
+        waiting.add(new Entry(fileName, toUserId, size, setup));
+        startWaiting();
+    }
+
+    /** Something a transfer was waiting for happened: an ACK, a resend or a freed queue slot. */
+    public synchronized void wakeup() {
+        woken = true;
+        notifyAll();
+    }
+
+    public synchronized List<TransferProgress> progress() {
+        List<TransferProgress> list = new ArrayList<>();
+        for (Entry entry : active) {
+            OutgoingTransfer transfer = entry.transfer;
+            list.add(new TransferProgress(transfer.fileId, entry.fileName, entry.toUserId, true, entry.state,
+                    transfer.window.ackedBytes(), entry.size, transfer.window.goodputBytesPerSecond()));
+        }
+        for (Entry entry : starting) {
+            list.add(new TransferProgress(null, entry.fileName, entry.toUserId, true, entry.state, 0, entry.size, 0));
+        }
+        for (Entry entry : waiting) {
+            list.add(new TransferProgress(null, entry.fileName, entry.toUserId, true, entry.state, 0, entry.size, 0));
+        }
+        return list;
+    }
+
+    // Caller holds this
+    private void startWaiting() {
+        while (!waiting.isEmpty() && starting.size() + active.size() < MAX_TRANSFERS) {
+            Entry entry = waiting.poll();
+            entry.state = TransferProgress.State.STARTING;
+            starting.add(entry);
+            setupExecutor.execute(() -> start(entry));
+        }
+    }
+
+    private void start(Entry entry) {
+        OutgoingTransfer transfer = null;
+        try {
+            transfer = entry.setup.call();
+        } catch (Exception e) {
+            System.err.println("Failed to start sending " + entry.fileName + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            starting.remove(entry);
+            if (transfer != null) {
+                entry.transfer = transfer;
+                entry.state = TransferProgress.State.ACTIVE;
+                active.add(entry);
+            }
+            startWaiting();
+            wakeup();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Entry> round;
+            synchronized (this) {
+                round = new ArrayList<>(active);
+            }
+            Map<String, Integer> perDestination = new HashMap<>();
+            for (Entry entry : round) {
+                perDestination.merge(entry.destination(), 1, Integer::sum);
+            }
+            long destinationShare = MAX_QUEUED_BYTES / Math.max(1, perDestination.size());
+
+            boolean busy = false;
+            for (Entry entry : round) {
+                try {
+                    if (entry.transfer.isFinished()) {
+                        finish(entry);
+                    } else {
+                        busy |= serve(entry, perDestination.get(entry.destination()), destinationShare);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Error sending " + entry.fileName + ": " + e.getMessage());
+                    e.printStackTrace();
+                    entry.transfer.window.abandon();
+                }
+            }
+
+            if (!busy) {
+                synchronized (this) {
+                    try {
+                        if (!woken) {
+                            wait(IDLE_WAIT_MS);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    woken = false;
+                }
+            }
+        }
+    }
+
+    // One DRR turn; returns true if anything was sent or the transfer only needs more allowance,
+    // false if it is waiting on its window or the queue cap
+    private boolean serve(Entry entry, int destinationTransfers, long destinationShare) {
+        OutgoingTransfer transfer = entry.transfer;
+        if (!transfer.hasResends() && !(transfer.window.hasRoom() && transfer.hasUnsent())) {
+            entry.deficit = 0;
+            return false;
+        }
+        AtomicLong queued = queuedBytes.computeIfAbsent(entry.destination(), k -> new AtomicLong());
+        int chunkSize = transfer.source.chunkSize();
+        // A transfer held back by the queue cap saves up at most one quantum, not a burst
+        entry.deficit = Math.min(entry.deficit + QUANTUM_BYTES / destinationTransfers,
+                Math.max(QUANTUM_BYTES, 2L * chunkSize));
+
+        boolean moved = false;
+        while (queued.get() + chunkSize <= destinationShare) {
+            if (entry.deficit < chunkSize) {
+                return true;
+            }
+            ChunkMetadata resend = transfer.pollResend();
+            if (resend != null) {
+                if (!resend.acknowledged && transfer.isPending(resend)) {
+                    entry.deficit -= resend.chunkSize;
+                    track(queued, resend.chunkSize, sender.resend(resend));
+                    moved = true;
+                }
+                continue;
+            }
+            if (!transfer.window.hasRoom()) {
+                break;
+            }
+            int chunkIndex = transfer.nextChunk();
+            if (chunkIndex < 0) {
+                break;
+            }
+            long sendSeq = transfer.window.tryAcquire();
+            if (sendSeq < 0) {
+                transfer.putBack(chunkIndex);
+                break;
+            }
+            int length = transfer.source.chunkLength(chunkIndex);
+            entry.deficit -= length;
+            track(queued, length, sender.send(transfer, chunkIndex, sendSeq));
+            transfer.dispatched();
+            moved = true;
+        }
+        return moved;
+    }
+
+    private void track(AtomicLong queued, int bytes, CompletableFuture<Void> sent) {
+        queued.addAndGet(bytes);
+        sent.whenComplete((ok, e) -> {
+            queued.addAndGet(-bytes);
+            wakeup();
+        });
+    }
+
+    private void finish(Entry entry) {
+        synchronized (this) {
+            active.remove(entry);
+            startWaiting();
+        }
+        sender.finished(entry.transfer);
+    }
+}
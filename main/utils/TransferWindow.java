@@ -0,0 +1,126 @@
+package main.utils;
+
+/**
+ * AIMD congestion window for one outgoing file transfer, counted in chunks. The window starts
+ * small, doubles every round trip in slow start, then grows by one chunk per round trip; a
+ * loss halves it, at most once per window of data so one burst of drops is one back-off.
+ * Every transmission, first send or retransmit, gets a new send sequence number so losses and
+ * ACKs can be placed in time.
+ */
+public final class TransferWindow {
+    private static final int INITIAL_WINDOW = Integer.getInteger("lsnp.initWindow", 4);
+    // The receiver queues at most 1024 messages per peer lane, so stay well below that
+    private static final int MAX_WINDOW = Integer.getInteger("lsnp.maxWindow", 512);
+    private static final int MIN_WINDOW = 2;
+    // A chunk is presumed lost once this many chunks sent after it have been ACKed
+    private static final int REORDER_THRESHOLD = 3;
+    private static final long DELAY_EXIT_NANOS = 4_000_000L;
+
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = MAX_WINDOW;
+    private int inFlight = 0;
+    private long nextSendSeq = 0;
+    private long recoverySeq = -1;
+    private long highestAckedSeq = -1;
+    private long minRttNanos = Long.MAX_VALUE;
+
+    // Goodput is measured from the first ACK so time spent waiting for the receiver to accept is excluded
+    private long startNanos = -1;
+    private long ackedBytes = 0;
+    private int lossEvents = 0;
+    private int retransmits = 0;
+    private boolean abandoned = false;
+
+    public synchronized boolean hasRoom() {
+        return inFlight < (int) cwnd && !abandoned;
+    }
+
+    /**
+     * Admits one more chunk and returns its send sequence number, or -1 if the window is full
+     * or the transfer has been abandoned.
+     */
+    public synchronized long tryAcquire() {
+        if (!hasRoom()) {
+            return -1;
+        }
+        inFlight++;
+        return nextSendSeq++;
+    }
+
+    /** Sequence number for a retransmission; the chunk is already counted as in flight. */
+    public synchronized long retransmitSeq() {
+        retransmits++;
+        return nextSendSeq++;
+    }
+
+    public synchronized void onAck(long sendSeq, int bytes) {
+        inFlight--;
+        if (startNanos < 0) {
+            startNanos = System.nanoTime();
+        }
+        ackedBytes += bytes;
+        highestAckedSeq = Math.max(highestAckedSeq, sendSeq);
+        cwnd = Math.min(MAX_WINDOW, cwnd < ssthresh ? cwnd + 1 : cwnd + 1 / cwnd);
+    }
+
+    /**
+     * Leaves slow start once the round trip has grown well past the smallest one seen: chunks
+     * are queueing somewhere, and doubling further would only overflow that queue (HyStart).
+     */
+    public synchronized void onRttSample(long rttNanos) {
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        if (cwnd < ssthresh && rttNanos > 2 * minRttNanos && rttNanos - minRttNanos > DELAY_EXIT_NANOS) {
+            ssthresh = cwnd;
+            VerboseLogger.retry("RTT rose from {} to {} us, leaving slow start at {} chunks", minRttNanos / 1000,
+                    rttNanos / 1000, (int) cwnd);
+        }
+    }
+
+    /** A chunk sent as {@code sendSeq} was lost (timed out or passed by later ACKs). */
+    public synchronized void onLoss(long sendSeq) {
+        if (sendSeq < recoverySeq) {
+            return;
+        }
+        lossEvents++;
+        ssthresh = Math.max(MIN_WINDOW, cwnd / 2);
+        cwnd = ssthresh;
+        recoverySeq = nextSendSeq;
+        VerboseLogger.retry("Loss of send {}, window cut to {} chunks with {} in flight", sendSeq, (int) cwnd,
+                inFlight);
+    }
+
+    /** A chunk was given up on; no further chunks are admitted. */
+    public synchronized void abandon() {
+        inFlight--;
+        abandoned = true;
+    }
+
+    public synchronized boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /** True if enough chunks sent after {@code sendSeq} have been ACKed to call it lost. */
+    public synchronized boolean isPassed(long sendSeq) {
+        return highestAckedSeq - sendSeq > REORDER_THRESHOLD;
+    }
+
+    public synchronized long ackedBytes() {
+        return ackedBytes;
+    }
+
+    public synchronized int windowSize() {
+        return (int) cwnd;
+    }
+
+    /** Acknowledged payload bytes per second since the transfer started. */
+    public synchronized long goodputBytesPerSecond() {
+        long elapsedNanos = startNanos < 0 ? 1 : Math.max(1, System.nanoTime() - startNanos);
+        return ackedBytes * 1_000_000_000L / elapsedNanos;
+    }
+
+    public synchronized String summary() {
+        double seconds = startNanos < 0 ? 0 : (System.nanoTime() - startNanos) / 1e9;
+        return String.format("%d bytes in %.1f s, goodput %d KB/s, window %d, %d retransmits, %d loss events",
+                ackedBytes, seconds, goodputBytesPerSecond() / 1024, (int) cwnd, retransmits, lossEvents);
+    }
+}
@@ -1,71 +1,412 @@
 package main.utils;
 
-import java.time.LocalDateTime;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+/**
+ * Verbose output, filtered per {@link LogCategory}. A call for a disabled category returns
+ * after one volatile read, so use the {@code "{}"}-placeholder or Supplier overloads instead
+ * of building the message String at the call site. Enabled entries go into a lock-free ring
+ * buffer and are formatted and written by a background thread, to the console or, with
+ * {@code -Dlsnp.log.file}, to a rotating file. Placeholder arguments are formatted later on
+ * that thread, so only pass values that will not change (Strings, numbers).
+ *
+ * <p>{@code -Dlsnp.log=DROP,TOKEN} limits which categories verbose mode turns on.
+ */
 public class VerboseLogger {
-    private static boolean enabled = false;
+    private static final int VERBOSE_MASK = categoryMask(System.getProperty("lsnp.log"));
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("lsnp.log.buffer", 8192)));
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 5_000_000L;
 
-    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String LOG_FILE = System.getProperty("lsnp.log.file");
+    private static final long LOG_FILE_MAX_BYTES = Long.getLong("lsnp.log.maxBytes", 10L * 1024 * 1024);
+    private static final int LOG_FILE_COUNT = Integer.getInteger("lsnp.log.files", 5);
 
+    private static final DateTimeFormatter formatter =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static volatile int enabledMask = 0;
+
+    // Ring buffer: producers claim a sequence number, fill the slot, then publish the sequence.
+    private static final Entry[] ring = new Entry[CAPACITY];
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile long consumed = 0; // written only by the writer thread
+    private static Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+            published.set(i, -1);
+        }
+    }
+
+    private static final class Entry {
+        long timeMillis;
+        LogCategory category;
+        String format;
+        int argCount;
+        Object a0;
+        Object a1;
+        Object a2;
+    }
+
+    /** Turns verbose output on or off for every category selected by {@code -Dlsnp.log}. */
     public static void setEnabled(boolean value) {
-        enabled = value;
+        enabledMask = value ? VERBOSE_MASK : 0;
+        if (value) {
+            startWriter();
+        }
+    }
+
+    public static void setEnabled(LogCategory category, boolean value) {
+        synchronized (VerboseLogger.class) {
+            enabledMask = value ? enabledMask | category.bit : enabledMask & ~category.bit;
+        }
+        if (value) {
+            startWriter();
+        }
     }
 
+    /** True if any category is enabled. */
     public static boolean isEnabled() {
-        return enabled;
+        return enabledMask != 0;
     }
 
-    private static String timestamp() {
-        return "[" + LocalDateTime.now().format(formatter) + "]";
+    public static boolean isEnabled(LogCategory category) {
+        return (enabledMask & category.bit) != 0;
     }
 
     public static void log(String msg) {
-        if (!enabled)
-            return;
-        System.out.println(timestamp() + " LOG > " + msg);
+        if (isEnabled(LogCategory.LOG))
+            enqueue(LogCategory.LOG, msg, 0, null, null, null);
+    }
+
+    public static void log(String format, Object a0) {
+        if (isEnabled(LogCategory.LOG))
+            enqueue(LogCategory.LOG, format, 1, a0, null, null);
+    }
+
+    public static void log(String format, Object a0, Object a1) {
+        if (isEnabled(LogCategory.LOG))
+            enqueue(LogCategory.LOG, format, 2, a0, a1, null);
+    }
+
+    public static void log(String format, Object a0, Object a1, Object a2) {
+        if (isEnabled(LogCategory.LOG))
+            enqueue(LogCategory.LOG, format, 3, a0, a1, a2);
+    }
+
+    /** For messages that need more than three values; the supplier runs on the calling thread. */
+    public static void log(Supplier<String> message) {
+        if (isEnabled(LogCategory.LOG))
+            enqueue(LogCategory.LOG, message.get(), 0, null, null, null);
     }
 
     public static void recv(Map<String, String> msg, String fromIP) {
-        if (!enabled)
+        if (!isEnabled(LogCategory.RECV))
             return;
-
-        String type = msg.getOrDefault("TYPE", "UNKNOWN");
-        System.out.println(timestamp() + " RECV < From: " + fromIP + ", TYPE: " + type);
-        msg.forEach((k, v) -> System.out.println("   " + k + ": " + v));
+        // Maps may be views over pooled datagram buffers, so they are rendered now, not later
+        enqueue(LogCategory.RECV, "From: " + fromIP + ", TYPE: " + msg.getOrDefault("TYPE", "UNKNOWN") + fields(msg),
+                0, null, null, null);
     }
 
     public static void send(Map<String, String> msg, String toIP) {
-        if (!enabled)
+        if (!isEnabled(LogCategory.SEND))
             return;
+        enqueue(LogCategory.SEND, "To: " + toIP + ", TYPE: " + msg.getOrDefault("TYPE", "UNKNOWN") + fields(msg),
+                0, null, null, null);
+    }
 
-        String type = msg.getOrDefault("TYPE", "UNKNOWN");
-        System.out.println(timestamp() + " SEND > To: " + toIP + ", TYPE: " + type);
-        msg.forEach((k, v) -> System.out.println("   " + k + ": " + v));
+    public static void recv(String format, Object a0, Object a1) {
+        if (isEnabled(LogCategory.RECV))
+            enqueue(LogCategory.RECV, format, 2, a0, a1, null);
+    }
+
+    public static void send(String format, Object a0, Object a1) {
+        if (isEnabled(LogCategory.SEND))
+            enqueue(LogCategory.SEND, format, 2, a0, a1, null);
+    }
+
+    private static String fields(Map<String, String> msg) {
+        StringBuilder sb = new StringBuilder();
+        msg.forEach((k, v) -> sb.append("\n   ").append(k).append(": ").append(v));
+        return sb.toString();
     }
 
     public static void drop(String reason) {
-        if (!enabled)
-            return;
-        System.out.println(timestamp() + " DROP ! " + reason);
+        if (isEnabled(LogCategory.DROP))
+            enqueue(LogCategory.DROP, reason, 0, null, null, null);
+    }
+
+    public static void drop(String format, Object a0) {
+        if (isEnabled(LogCategory.DROP))
+            enqueue(LogCategory.DROP, format, 1, a0, null, null);
+    }
+
+    public static void drop(String format, Object a0, Object a1) {
+        if (isEnabled(LogCategory.DROP))
+            enqueue(LogCategory.DROP, format, 2, a0, a1, null);
+    }
+
+    public static void drop(String format, Object a0, Object a1, Object a2) {
+        if (isEnabled(LogCategory.DROP))
+            enqueue(LogCategory.DROP, format, 3, a0, a1, a2);
     }
 
     public static void retry(String context, int attempt) {
-        if (!enabled)
-            return;
-        System.out.println(timestamp() + " RETRY ~ " + context + " (attempt " + attempt + ")");
+        if (isEnabled(LogCategory.RETRY))
+            enqueue(LogCategory.RETRY, "{} (attempt {})", 2, context, attempt, null);
+    }
+
+    public static void retry(String format, Object a0, Object a1, Object a2) {
+        if (isEnabled(LogCategory.RETRY))
+            enqueue(LogCategory.RETRY, format, 3, a0, a1, a2);
     }
 
     public static void ack(String ackInfo) {
-        if (!enabled)
-            return;
-        System.out.println(timestamp() + " ACK ✔ " + ackInfo);
+        if (isEnabled(LogCategory.ACK))
+            enqueue(LogCategory.ACK, ackInfo, 0, null, null, null);
+    }
+
+    public static void ack(String format, Object a0) {
+        if (isEnabled(LogCategory.ACK))
+            enqueue(LogCategory.ACK, format, 1, a0, null, null);
+    }
+
+    public static void ack(String format, Object a0, Object a1) {
+        if (isEnabled(LogCategory.ACK))
+            enqueue(LogCategory.ACK, format, 2, a0, a1, null);
+    }
+
+    public static void ack(String format, Object a0, Object a1, Object a2) {
+        if (isEnabled(LogCategory.ACK))
+            enqueue(LogCategory.ACK, format, 3, a0, a1, a2);
     }
 
     public static void token(String userId, boolean valid) {
-        if (!enabled)
+        if (isEnabled(LogCategory.TOKEN))
+            enqueue(LogCategory.TOKEN, "{} → {}", 2, userId, valid ? "VALID" : "EXPIRED/INVALID", null);
+    }
+
+    // A full buffer drops the entry rather than block the caller; the writer reports how many.
+    private static void enqueue(LogCategory category, String format, int argCount, Object a0, Object a1, Object a2) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        int slot = (int) (seq & MASK);
+        Entry entry = ring[slot];
+        entry.timeMillis = System.currentTimeMillis();
+        entry.category = category;
+        entry.format = format;
+        entry.argCount = argCount;
+        entry.a0 = a0;
+        entry.a1 = a1;
+        entry.a2 = a2;
+        published.setRelease(slot, seq);
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        Sink sink = LOG_FILE != null ? new RotatingFileSink(LOG_FILE) : new ConsoleSink(System.out);
+        writer = new Thread(() -> runWriter(sink), "lsnp-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (sink) {
+                drain(sink, new StringBuilder(), new long[] {-1});
+                sink.flush();
+            }
+        }, "lsnp-log-flush"));
+    }
+
+    private static void runWriter(Sink sink) {
+        StringBuilder line = new StringBuilder(256);
+        long[] lastSecond = {-1};
+        while (true) {
+            synchronized (sink) {
+                if (drain(sink, line, lastSecond) == 0) {
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0) {
+                        sink.write("[log] " + lost + " entries dropped, log buffer full");
+                    }
+                    sink.flush();
+                } else {
+                    continue;
+                }
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private static String timestampPrefix;
+
+    // Formats and writes everything published so far; returns the number of entries written.
+    private static int drain(Sink sink, StringBuilder line, long[] lastSecond) {
+        int count = 0;
+        long next = consumed;
+        while (true) {
+            int slot = (int) (next & MASK);
+            if (published.getAcquire(slot) != next) {
+                return count;
+            }
+            Entry entry = ring[slot];
+            long second = entry.timeMillis / 1000;
+            if (second != lastSecond[0]) {
+                lastSecond[0] = second;
+                timestampPrefix = "[" + formatter.format(Instant.ofEpochSecond(second)) + "] ";
+            }
+            line.setLength(0);
+            line.append(timestampPrefix).append(entry.category.label).append(' ');
+            format(line, entry);
+            entry.format = null;
+            entry.a0 = entry.a1 = entry.a2 = null;
+            consumed = ++next;
+            sink.write(line);
+            count++;
+        }
+    }
+
+    private static void format(StringBuilder out, Entry entry) {
+        String format = entry.format;
+        if (entry.argCount == 0) {
+            out.append(format);
             return;
-        System.out.println(timestamp() + " TOKEN ? " + userId + " → " + (valid ? "VALID" : "EXPIRED/INVALID"));
+        }
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < entry.argCount && (at = format.indexOf("{}", from)) >= 0) {
+            out.append(format, from, at).append(arg == 0 ? entry.a0 : arg == 1 ? entry.a1 : entry.a2);
+            arg++;
+            from = at + 2;
+        }
+        out.append(format, from, format.length());
+    }
+
+    private static int categoryMask(String names) {
+        if (names == null || names.isBlank()) {
+            return (1 << LogCategory.values().length) - 1;
+        }
+        int mask = 0;
+        for (String name : names.split(",")) {
+            try {
+                mask |= LogCategory.valueOf(name.trim().toUpperCase()).bit;
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log category: " + name.trim());
+            }
+        }
+        return mask;
+    }
+
+    private interface Sink {
+        void write(CharSequence line);
+
+        void flush();
+    }
+
+    private static final class ConsoleSink implements Sink {
+        private final PrintStream out;
+
+        ConsoleSink(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(CharSequence line) {
+            out.println(line);
+        }
+
+        @Override
+        public void flush() {
+            out.flush();
+        }
+    }
+
+    /** Appends to {@code path}; once it passes the size limit it becomes path.1, path.1 becomes path.2, ... */
+    private static final class RotatingFileSink implements Sink {
+        private final File file;
+        private Writer out;
+        private long size;
+
+        RotatingFileSink(String path) {
+            this.file = new File(path);
+            open();
+        }
+
+        private void open() {
+            try {
+                size = file.length();
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Could not open log file " + file + ": " + e.getMessage());
+                out = null;
+            }
+        }
+
+        @Override
+        public void write(CharSequence line) {
+            if (out == null) {
+                System.out.println(line);
+                return;
+            }
+            try {
+                out.append(line).append('\n');
+                size += line.length() + 1;
+                if (size >= LOG_FILE_MAX_BYTES) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                System.err.println("Log file write failed: " + e.getMessage());
+            }
+        }
+
+        private void rotate() throws IOException {
+            out.close();
+            for (int i = LOG_FILE_COUNT - 1; i >= 1; i--) {
+                File older = new File(file.getPath() + "." + i);
+                File source = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+                if (source.exists()) {
+                    older.delete();
+                    source.renameTo(older);
+                }
+            }
+            open();
+        }
+
+        @Override
+        public void flush() {
+            if (out != null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    System.err.println("Log file flush failed: " + e.getMessage());
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,28 @@
+package main.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodings a message can travel in. Both share one socket: a binary message starts with
+ * {@link #BINARY_MAGIC}, a byte that can never begin a text message.
+ *
+ * LSNP-B layout after the two header bytes (magic, version) is a sequence of fields:
+ * <pre>
+ *   varint tag      known field: LsnpField ordinal + 1; 0: key follows as varint length + UTF-8
+ *   varint length   value length in bytes
+ *   value           UTF-8 text, or raw bytes for binary fields such as DATA
+ * </pre>
+ */
+public enum WireFormat {
+    TEXT, BINARY;
+
+    public static final byte BINARY_MAGIC = (byte) 0xB5;
+    public static final byte BINARY_VERSION = 1;
+
+    /** Capability name advertised in PROFILE by peers that accept LSNP-B. */
+    public static final String BINARY_CAPABILITY = "LSNP-B";
+
+    public static WireFormat detect(ByteBuffer payload) {
+        return payload.remaining() > 0 && payload.get(payload.position()) == BINARY_MAGIC ? BINARY : TEXT;
+    }
+}
@@ -0,0 +1,111 @@
+package main.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * XOR parity over a run of consecutive file chunks. One FILE_REPAIR per run lets the receiver
+ * rebuild any single chunk of it that was lost, without waiting a round trip for the resend.
+ * The run length follows the loss rate the sender measures, and FEC is off while the link is
+ * clean. One encoder per outgoing transfer, used only by the scheduler thread.
+ */
+public final class XorFec {
+    /** Peer rebuilds chunks from FILE_REPAIR parity. */
+    public static final String CAPABILITY = "FEC";
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("lsnp.fec", "true"));
+    // Below this loss rate parity costs more than the resends it saves
+    private static final double MIN_LOSS = 0.005;
+    private static final int MIN_BLOCK = 3;
+    private static final int MAX_BLOCK = 64;
+
+    private final byte[] parity;
+    private int first = -1;
+    private int count = 0;
+    private int blocksSent = 0;
+
+    public XorFec(int chunkSize) {
+        this.parity = new byte[chunkSize];
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Chunks per parity for a measured loss rate, aiming at about one loss in every two blocks
+     * since a block can only repair one; 0 means send no parity.
+     */
+    public static int blockSizeFor(double lossRate) {
+        if (lossRate < MIN_LOSS) {
+            return 0;
+        }
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, 0.5 / lossRate));
+    }
+
+    /**
+     * Adds the first transmission of a chunk. Returns true when the run is ready to send: it
+     * holds {@code blockSize} chunks or ends at the file's last chunk. A chunk that does not follow
+     * the run starts a new one.
+     */
+    public boolean add(int chunkIndex, ByteBuffer data, int blockSize, boolean lastChunk) {
+        if (blockSize == 0) {
+            reset();
+            return false;
+        }
+        if (count > 0 && chunkIndex != first + count) {
+            reset();
+        }
+        if (count == 0) {
+            first = chunkIndex;
+        }
+        xor(parity, data);
+        count++;
+        return count >= blockSize || (lastChunk && count > 1);
+    }
+
+    public int first() {
+        return first;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public byte[] parity() {
+        return parity;
+    }
+
+    /** Starts a new run once the parity of this one has been sent. */
+    public void sent() {
+        blocksSent++;
+        reset();
+    }
+
+    public int blocksSent() {
+        return blocksSent;
+    }
+
+    private void reset() {
+        if (count > 0) {
+            java.util.Arrays.fill(parity, (byte) 0);
+        }
+        first = -1;
+        count = 0;
+    }
+
+    /** XORs {@code data} into the start of {@code into}; shorter data acts as zero-padded. */
+    public static void xor(byte[] into, ByteBuffer data) {
+        ByteBuffer src = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer dst = ByteBuffer.wrap(into).order(ByteOrder.LITTLE_ENDIAN);
+        int length = Math.min(into.length, src.remaining());
+        int base = src.position();
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            dst.putLong(i, dst.getLong(i) ^ src.getLong(base + i));
+        }
+        for (; i < length; i++) {
+            into[i] ^= src.get(base + i);
+        }
+    }
+}